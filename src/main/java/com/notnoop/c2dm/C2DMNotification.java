@@ -30,24 +30,53 @@
  */
 package com.notnoop.c2dm;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map.Entry;
 
+import com.notnoop.c2dm.internal.NotificationEntity;
+
 /**
  * Represents an C2DM notification to be sent to Google service.
  */
 public class C2DMNotification {
     private final String collapseKey;
     private final boolean delayWhileIdle;
+    private final Priority priority;
     private final Collection<? extends Entry<String, String>> data;
 
+    static {
+        NotificationEntity.setParameterCache(new NotificationEntity.ParameterCache() {
+            public byte[] get(C2DMNotification notification) {
+                return notification.encodedParameters;
+            }
+
+            public void set(C2DMNotification notification, byte[] parameters) {
+                notification.encodedParameters = parameters;
+            }
+        });
+    }
+
+    /** the form-encoded parameters, cached by the services */
+    private volatile byte[] encodedParameters;
+
     public C2DMNotification(String collapseKey,
             boolean delayWhileIdle,
             Collection<? extends Entry<String, String>> data) {
+        this(collapseKey, delayWhileIdle, data, Priority.NORMAL);
+    }
+
+    public C2DMNotification(String collapseKey,
+            boolean delayWhileIdle,
+            Collection<? extends Entry<String, String>> data,
+            Priority priority) {
         this.collapseKey = collapseKey;
         this.delayWhileIdle = delayWhileIdle;
-        this.data = data;
+        this.priority = priority;
+        // copied, as the encoded parameters are cached
+        this.data = data == null ? Collections.<Entry<String, String>>emptyList()
+                : new ArrayList<Entry<String, String>>(data);
     }
 
     public String getCollapseKey() {
@@ -58,6 +87,14 @@ public class C2DMNotification {
         return delayWhileIdle;
     }
 
+    /**
+     * Returns the priority class of this notification in a queued service;
+     * it isn't sent to Google servers.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
     public Collection<? extends Entry<String, String>> getData() {
         return Collections.unmodifiableCollection(data);
     }
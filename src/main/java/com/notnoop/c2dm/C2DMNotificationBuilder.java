@@ -45,6 +45,7 @@ import com.notnoop.c2dm.internal.Pair;
 public class C2DMNotificationBuilder {
     private String collapseKey;
     private boolean delayWhileIdle;
+    private Priority priority = Priority.NORMAL;
     private List<Pair<String, String>> data = new ArrayList<Pair<String, String>>();
 
     public C2DMNotificationBuilder() {}
@@ -77,6 +78,23 @@ public class C2DMNotificationBuilder {
         return this;
     }
 
+    /**
+     * Sets the priority class of the message, when sent through a queued
+     * service with priorities enabled.  The priority only affects the order
+     * in which queued messages are sent, and is not sent to Google servers.
+     *
+     * Default value is {@link Priority#NORMAL}.
+     *
+     * @return  this
+     */
+    public C2DMNotificationBuilder priority(Priority priority) {
+        if (priority == null) {
+            throw new NullPointerException("priority");
+        }
+        this.priority = priority;
+        return this;
+    }
+
     /**
      * Appends an application specific payload data entry.
      *
@@ -102,6 +120,6 @@ public class C2DMNotificationBuilder {
      */
     public C2DMNotification build() {
         checkInitialization();
-        return new C2DMNotification(collapseKey, delayWhileIdle, data);
+        return new C2DMNotification(collapseKey, delayWhileIdle, data, priority);
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm;
+
+/**
+ * Represents the outcome of sending a message to a device through the
+ * Google C2DM servers.
+ *
+ * @see C2DMService#pushAsync(String, C2DMNotification)
+ */
+public class C2DMResult {
+    private final String registrationId;
+    private final C2DMNotification message;
+    private final C2DMResponse response;
+    private final String messageId;
+
+    public C2DMResult(String registrationId, C2DMNotification message,
+            C2DMResponse response, String messageId) {
+        this.registrationId = registrationId;
+        this.message = message;
+        this.response = response;
+        this.messageId = messageId;
+    }
+
+    /**
+     * Returns the registration id of the destination device
+     */
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+    /**
+     * Returns the sent message
+     */
+    public C2DMNotification getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the response Google sent
+     */
+    public C2DMResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Returns the id assigned to the message by Google servers, or
+     * {@code null} if the message wasn't sent successfully
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public boolean isSuccessful() {
+        return response.isSuccessful();
+    }
+
+    @Override
+    public String toString() {
+        return "C2DMResult[" + registrationId + ": " + response
+            + (messageId != null ? " (" + messageId + ")" : "") + "]";
+    }
+}
@@ -30,6 +30,8 @@
  */
 package com.notnoop.c2dm;
 
+import java.util.concurrent.CompletableFuture;
+
 import com.notnoop.c2dm.exceptions.NetworkIOException;
 
 /**
@@ -69,11 +71,112 @@ public interface C2DMService {
     void push(String registrationId, C2DMNotification message)
         throws NetworkIOException;
 
+    /**
+     * Sends the provided notification {@code message} to the desired
+     * destination, without waiting for the outcome.
+     *
+     * The returned future completes with the response of Google servers,
+     * whether the message was accepted or rejected.  It completes
+     * exceptionally if the message couldn't be sent, e.g. with a
+     * {@link NetworkIOException} if a network error occurred.
+     *
+     * Any configured {@link C2DMDelegate} is notified as well.
+     *
+     * The default implementation throws, as {@link #push(String,
+     * C2DMNotification)} doesn't report the response to complete the
+     * future with; services built by {@link C2DMServiceBuilder} support
+     * it.
+     *
+     * @return  the future outcome of sending the message
+     * @throws UnsupportedOperationException if the service doesn't
+     *      report outcomes
+     */
+    default CompletableFuture<C2DMResult> pushAsync(String registrationId, C2DMNotification message) {
+        throw new UnsupportedOperationException("pushAsync is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Sends the provided notification {@code message} at the given time,
+     * or right away if the time has passed.
+     *
+     * The message waits in the service until then; the service needn't be
+     * fronted by a scheduler of its own.  Send times have a resolution of
+     * ten millis by default.  Queued services with a journal persist the
+     * message right away, so that it is still sent on time, or as soon as
+     * the service starts again, across restarts.
+     *
+     * Cancelling the returned future before the time comes prevents the
+     * message from being sent.
+     *
+     * The default implementation throws; services built by
+     * {@link C2DMServiceBuilder} support it.
+     *
+     * @param sendTime  the time in millis since the epoch to send at
+     * @return  the future outcome of sending the message
+     * @throws UnsupportedOperationException if the service doesn't
+     *      support scheduling
+     * @see C2DMServiceBuilder#withScheduleResolution(long)
+     */
+    default CompletableFuture<C2DMResult> pushAt(String registrationId, C2DMNotification message,
+            long sendTime) {
+        throw new UnsupportedOperationException("pushAt is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Sends the provided notification {@code message} after the given
+     * delay in millis.
+     *
+     * @see #pushAt(String, C2DMNotification, long)
+     */
+    default CompletableFuture<C2DMResult> pushAfter(String registrationId, C2DMNotification message,
+            long delay) {
+        return pushAt(registrationId, message, System.currentTimeMillis() + delay);
+    }
+
+    /**
+     * Sends the provided notification {@code message} to many devices.
+     *
+     * The messages are handed to the service like {@link #pushAsync}
+     * does, so they are sent in parallel when the service is pooled,
+     * queued or non-blocking.  At most a window of messages is awaiting
+     * responses at any time, so this call blocks while iterating over the
+     * registration ids; the ids may thus be produced lazily, e.g. from a
+     * stream through {@code stream::iterator}.
+     *
+     * The returned future completes with the aggregate outcome, once the
+     * outcome for every device is known.
+     *
+     * @return  the future aggregate outcome of sending the message
+     */
+    default CompletableFuture<MulticastResult> multicast(Iterable<String> registrationIds,
+            C2DMNotification message) {
+        return multicast(registrationIds, message, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Sends the provided notification {@code message} to many devices,
+     * reporting the progress to the {@code listener} every
+     * {@code chunkSize} devices.
+     *
+     * The default implementation throws; services built by
+     * {@link C2DMServiceBuilder} support it.
+     *
+     * @throws UnsupportedOperationException if the service doesn't
+     *      support multicasts
+     * @see #multicast(Iterable, C2DMNotification)
+     */
+    default CompletableFuture<MulticastResult> multicast(Iterable<String> registrationIds,
+            C2DMNotification message, int chunkSize, MulticastListener listener) {
+        throw new UnsupportedOperationException("multicast is not supported by " + getClass().getName());
+    }
+
     /**
      * Starts the service.
      *
      * The underlying implementation may prepare its connections or
-     * datastructures to be able to send the messages.
+     * datastructures to be able to send the messages, such as the
+     * {@link C2DMServiceBuilder#withPrewarmedConnections(int) pre-warmed}
+     * connections.
      *
      * This method is a blocking call, even if the service represents
      * a Non-blocking push service.  Once the service is returned, it is ready
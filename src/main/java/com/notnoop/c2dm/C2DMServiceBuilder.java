@@ -30,6 +30,8 @@
  */
 package com.notnoop.c2dm;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -37,9 +39,12 @@ import org.apache.http.HttpHost;
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
+import com.notnoop.c2dm.exceptions.NetworkIOException;
+import com.notnoop.c2dm.exceptions.RuntimeIOException;
 import com.notnoop.c2dm.internal.*;
 
 /**
@@ -62,14 +67,62 @@ public class C2DMServiceBuilder {
     private String serviceUri = Utilities.DEFAULT_C2DM_SERVICE_URI;
 
     private String authToken;
+    private AuthTokenProvider authTokenProvider;
+    private long authTokenRefresh = -1;
 
     private int pooledMax = 1;
     private ExecutorService executor = null;
+    private int maxInFlight = -1;
+    private int orderedLanes = -1;
+
+    private boolean isNonBlocking = false;
+    private int nonBlockingMax = 1;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
 
     private boolean isQueued = false;
+    private int queueCapacity = Integer.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long queueBlockTimeout = -1;
+    private int queueThreads = 1;
+    private int queueBatchSize = 1;
+    private long queueLinger = 0;
+    private boolean queueCoalescing = false;
+    private boolean queueCompact = false;
+    private int[] priorityWeights = null;
+    private File journalDirectory = null;
+    private int journalSegmentSize = 64 * 1024 * 1024;
+    private long journalSyncInterval = 50;
+
     private HttpHost proxy = null;
     private HttpClient httpClient = null;
     private int timeout = -1;
+    private long connectionTtl = -1;
+    private long keepAlive = -1;
+    private long idleEviction = -1;
+    private boolean staleCheck = true;
+    private int prewarmConnections = 0;
+    private long scheduleResolution = 10;
+
+    private int maxAttempts = 1;
+    private long initialBackoff = 1000;
+    private long maxBackoff = 60000;
+
+    private boolean hasCircuitBreaker = false;
+    private double failureRate = 0.5;
+    private int failureWindow = 100;
+    private int failureMinimum = 20;
+    private long openMillis = 30000;
+    private int probes = 5;
+    private CircuitBreakerListener circuitBreakerListener;
+
+    private double rateLimit = -1;
+    private int rateBurst = 1;
+    private double keyRateLimit = -1;
+    private int keyRateBurst = 1;
+
+    private int throttledDevices = -1;
+    private long deviceBackoff = 10000;
+    private long maxDeviceBackoff = 600000;
 
     private C2DMDelegate delegate;
 
@@ -86,6 +139,9 @@ public class C2DMServiceBuilder {
      * Java Networking and Proxies</a> guide to understand the
      * proxies complexity.
      *
+     * The logins of a {@link ClientLogin} token provider go through the
+     * proxy too, using a copy of the provider.
+     *
      * @param host  the hostname of the HTTP proxy
      * @param port  the port of the HTTP proxy server
      * @return  this
@@ -113,6 +169,38 @@ public class C2DMServiceBuilder {
         return this;
     }
 
+    /**
+     * Requests new authentication tokens from the provided source, once a
+     * day and whenever Google servers reject the current token.
+     *
+     * @see #withAuthTokenProvider(AuthTokenProvider, long)
+     */
+    public C2DMServiceBuilder withAuthTokenProvider(AuthTokenProvider provider) {
+        return withAuthTokenProvider(provider, 24 * 60 * 60 * 1000L);
+    }
+
+    /**
+     * Requests new authentication tokens from the provided source,
+     * periodically so that the token is replaced before it expires, and
+     * whenever Google servers reject the current token.  Messages rejected
+     * meanwhile are sent again with the new token.
+     *
+     * Sends keep using the current token while a new one is requested.
+     * If no token is specified with {@link #withAuthToken(String)}, the
+     * first one is requested when building the service.
+     *
+     * @param provider  the source of authentication tokens
+     * @param refreshInterval   the time in millis between requests for a
+     *              new token, or non-positive to only request one when the
+     *              current token is rejected
+     * @return  this
+     */
+    public C2DMServiceBuilder withAuthTokenProvider(AuthTokenProvider provider, long refreshInterval) {
+        this.authTokenProvider = provider;
+        this.authTokenRefresh = refreshInterval;
+        return this;
+    }
+
     // TODO: Support Proxy again
 //    /**
 //     * Specify the proxy to be used to establish the connections
@@ -161,6 +249,91 @@ public class C2DMServiceBuilder {
     public C2DMServiceBuilder asPool(ExecutorService executor, int maxConnections) {
         this.pooledMax = maxConnections;
         this.executor = executor;
+        this.maxInFlight = -1;
+        return this;
+    }
+
+    /**
+     * Constructs a pool of connections to the notification servers, sending
+     * each notification on its own virtual thread.
+     *
+     * Unlike {@link #asPool(int)}, the number of pending notifications isn't
+     * tied to a number of platform threads.  At most
+     * {@code maxConcurrentRequests} notifications are sent at any time;
+     * the others wait on their virtual threads for a free connection.
+     *
+     * @param maxConcurrentRequests the maximum number of requests in flight,
+     *          which is also the maximum number of connections
+     * @return  this
+     */
+    public C2DMServiceBuilder asVirtualThreadPool(int maxConcurrentRequests) {
+        asPool(Executors.newVirtualThreadPerTaskExecutor(), maxConcurrentRequests);
+        this.maxInFlight = maxConcurrentRequests;
+        return this;
+    }
+
+    /**
+     * Delivers the notifications to each device in the order they are
+     * pushed, sending to one device at a time while different devices are
+     * still served concurrently by the pool.
+     *
+     * Devices are spread over four lanes per pooled connection.
+     *
+     * @see #withOrderedDelivery(int)
+     */
+    public C2DMServiceBuilder withOrderedDelivery() {
+        return withOrderedDelivery(0);
+    }
+
+    /**
+     * Delivers the notifications to each device in the order they are
+     * pushed, sending to one device at a time while different devices are
+     * still served concurrently by the pool.
+     *
+     * Registration ids are hashed to lanes, each sending its messages one
+     * after the other.  Devices sharing a lane wait for one another, so
+     * more lanes than connections keep the pool busy.  This requires a
+     * pooled service.
+     *
+     * @param lanes the number of lanes, rounded up to a power of two;
+     *          non-positive to use four per pooled connection
+     * @return  this
+     */
+    public C2DMServiceBuilder withOrderedDelivery(int lanes) {
+        this.orderedLanes = Math.max(lanes, 0);
+        return this;
+    }
+
+    /**
+     * Sends the notifications through a non-blocking HTTP client, with one
+     * I/O thread per available processor.
+     *
+     * @see #asNonBlocking(int, int)
+     */
+    public C2DMServiceBuilder asNonBlocking(int maxConnections) {
+        return asNonBlocking(maxConnections, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sends the notifications through a non-blocking HTTP client.
+     *
+     * Unlike {@link #asPool(int)}, no thread is blocked waiting for a
+     * response: requests are multiplexed over up to {@code maxConnections}
+     * connections by {@code ioThreads} I/O threads, and any further requests
+     * wait for a free connection without holding a thread.  Delegates are
+     * called on the I/O threads, and should return promptly.
+     *
+     * This option cannot be combined with {@link #asPool(int)} or
+     * {@link #withHttpClient(HttpClient)}.
+     *
+     * @param maxConnections    the maximum number of open connections
+     * @param ioThreads     the number of I/O threads
+     * @return  this
+     */
+    public C2DMServiceBuilder asNonBlocking(int maxConnections, int ioThreads) {
+        this.isNonBlocking = true;
+        this.nonBlockingMax = maxConnections;
+        this.ioThreads = ioThreads;
         return this;
     }
 
@@ -168,6 +341,8 @@ public class C2DMServiceBuilder {
      * Constructs a new thread with a processing queue to process
      * notification requests.
      *
+     * The returned service implements {@link QueueMetrics}.
+     *
      * @return  this
      */
     public C2DMServiceBuilder asQueued() {
@@ -176,7 +351,227 @@ public class C2DMServiceBuilder {
     }
 
     /**
-     * Sets the timeout for the connection
+     * Constructs a new thread with a bounded processing queue to process
+     * notification requests.
+     *
+     * Once the queue holds {@code capacity} messages, pushing a new message
+     * is handled according to the provided {@code overflowPolicy}.  Under
+     * {@link OverflowPolicy#BLOCK}, the pushing thread waits indefinitely.
+     *
+     * With several {@link #withQueueThreads(int) queue threads}, each
+     * thread gets an even share of the capacity, and the overflow policy
+     * applies as soon as the share of the thread a message goes to is
+     * full, even if other threads still have room.
+     *
+     * With {@link #withPriorities() priorities}, messages of each priority
+     * may fill the capacity on their own, so the queue holds up to three
+     * times {@code capacity} messages.
+     *
+     * The returned service implements {@link QueueMetrics}.
+     *
+     * @param capacity  the maximum number of messages waiting to be sent
+     * @param overflowPolicy    the action to take when the queue is full
+     * @return  this
+     */
+    public C2DMServiceBuilder asQueued(int capacity, OverflowPolicy overflowPolicy) {
+        return asQueued(capacity, overflowPolicy, -1);
+    }
+
+    /**
+     * Constructs a new thread with a bounded processing queue to process
+     * notification requests.
+     *
+     * Once the queue holds {@code capacity} messages, pushing a new message
+     * is handled according to the provided {@code overflowPolicy}.  Under
+     * {@link OverflowPolicy#BLOCK}, the pushing thread waits at most
+     * {@code blockTimeout} millis before the message is rejected with
+     * {@link com.notnoop.c2dm.exceptions.QueueFullException}.
+     *
+     * With several {@link #withQueueThreads(int) queue threads}, each
+     * thread gets an even share of the capacity, and the overflow policy
+     * applies as soon as the share of the thread a message goes to is
+     * full, even if other threads still have room.
+     *
+     * With {@link #withPriorities() priorities}, messages of each priority
+     * may fill the capacity on their own, so the queue holds up to three
+     * times {@code capacity} messages.
+     *
+     * The returned service implements {@link QueueMetrics}.
+     *
+     * @param capacity  the maximum number of messages waiting to be sent
+     * @param overflowPolicy    the action to take when the queue is full
+     * @param blockTimeout  the time out period in millis for
+     *          {@link OverflowPolicy#BLOCK}; negative to wait forever
+     * @return  this
+     */
+    public C2DMServiceBuilder asQueued(int capacity, OverflowPolicy overflowPolicy, long blockTimeout) {
+        this.isQueued = true;
+        this.queueCapacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.queueBlockTimeout = blockTimeout;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads draining the processing queue of a queued
+     * service.
+     *
+     * Messages to the same registration id are taken off the queue in order
+     * by the same thread, while messages to different devices are sent in
+     * parallel.  Without a pool, each thread sends its messages one at a
+     * time over its own connection, so messages to a device are sent in
+     * order.  A pooled or non-blocking service sends them concurrently
+     * instead, unless {@link #withOrderedDelivery()} is set.  Retried
+     * messages are sent after later ones in either case.
+     *
+     * The queue capacity is divided evenly among the threads, so that
+     * messages to a few busy devices may overflow their thread's share
+     * while the queue as a whole still has room.
+     *
+     * Default value is 1.
+     *
+     * @param threads   the number of drain threads
+     * @return  this
+     */
+    public C2DMServiceBuilder withQueueThreads(int threads) {
+        this.queueThreads = threads;
+        return this;
+    }
+
+    /**
+     * Sets how the threads of a queued service take messages off the queue.
+     *
+     * Each thread takes up to {@code maxBatchSize} messages at once and
+     * hands them to the underlying connection together, waiting at most
+     * {@code maxLinger} millis for a partial batch to fill up.  Batching
+     * reduces contention on the queue under sustained load, at the cost of
+     * up to {@code maxLinger} of added latency when the load is light.
+     *
+     * By default messages are taken one at a time, without lingering.
+     *
+     * @param maxBatchSize  the maximum number of messages taken at once
+     * @param maxLinger     the maximum time in millis to wait for a batch to
+     *          fill up
+     * @return  this
+     */
+    public C2DMServiceBuilder withQueueBatching(int maxBatchSize, long maxLinger) {
+        this.queueBatchSize = maxBatchSize;
+        this.queueLinger = maxLinger;
+        return this;
+    }
+
+    /**
+     * Makes the queue of a queued service coalesce messages: a message
+     * pushed while an earlier message with the same registration id and
+     * collapse key is still waiting replaces it, as Google servers would
+     * only deliver the latest one anyway.  During backlogs, this saves both
+     * requests and queue memory.
+     *
+     * The future of a replaced message completes with the outcome of the
+     * message that replaced it.  The number of replaced messages is
+     * available through {@link QueueMetrics}.
+     *
+     * @return  this
+     */
+    public C2DMServiceBuilder withQueueCoalescing() {
+        this.queueCoalescing = true;
+        return this;
+    }
+
+    /**
+     * Queues the messages of a queued service by their
+     * {@link C2DMNotification#getPriority() priority}, with weights of 16,
+     * 4 and 1 for high, normal and low priority messages.
+     *
+     * @see #withPriorities(int, int, int)
+     */
+    public C2DMServiceBuilder withPriorities() {
+        return withPriorities(16, 4, 1);
+    }
+
+    /**
+     * Queues the messages of a queued service by their
+     * {@link C2DMNotification#getPriority() priority}.  While messages of
+     * several priorities are waiting, each priority gets a share of the
+     * queue threads proportional to its weight, so a backlog of low
+     * priority messages delays a high priority message by a few messages
+     * at most, without starving the backlog either.  Messages of each
+     * priority may fill the queue capacity on their own.
+     *
+     * Pooled and non-blocking services then only take up to twice as many
+     * messages as they have connections from the queue, so that the
+     * backlog waits in the queue rather than in their executor.
+     *
+     * The depth and waiting time of each priority are available through
+     * {@link QueueMetrics}.
+     *
+     * @param high  the weight of high priority messages
+     * @param normal    the weight of normal priority messages
+     * @param low   the weight of low priority messages
+     * @return  this
+     */
+    public C2DMServiceBuilder withPriorities(int high, int normal, int low) {
+        this.priorityWeights = new int[] { high, normal, low };
+        return this;
+    }
+
+    /**
+     * Holds the messages waiting in the queue of a queued service in a
+     * compact binary form, decoding them only when they are sent, so that
+     * large backlogs take less memory.  Consecutive messages sharing a
+     * notification, as broadcasts do, share its encoding as well.
+     *
+     * The delegate and futures then receive decoded copies of the pushed
+     * notifications rather than the same instances.
+     *
+     * @return  this
+     */
+    public C2DMServiceBuilder withCompactQueue() {
+        this.queueCompact = true;
+        return this;
+    }
+
+    /**
+     * Persists the messages of a queued service in a journal in the given
+     * directory, in 64MB segment files forced to disk every 50 millis.
+     *
+     * @see #withJournal(File, int, long)
+     */
+    public C2DMServiceBuilder withJournal(File directory) {
+        return withJournal(directory, 64 * 1024 * 1024, 50);
+    }
+
+    /**
+     * Persists the messages of a queued service in a journal in the given
+     * directory, so that messages still waiting to be sent when the
+     * process dies are sent when a service is next built with the same
+     * directory.  Only one service may use a directory at a time.
+     *
+     * Messages are appended to memory-mapped segment files, which survive
+     * the process dying.  To also survive the machine crashing, the files
+     * are forced to disk every {@code syncInterval} millis, committing all
+     * the messages queued in the meantime at once; a crash may lose the
+     * messages of the last interval.  Messages are acknowledged in the
+     * journal once sent or failed for good, and a message acknowledged
+     * shortly before a crash may be sent again.
+     *
+     * @param directory the directory of the journal files
+     * @param segmentSize   the size in bytes of each journal file
+     * @param syncInterval  the time in millis between forcing the journal
+     *          to disk
+     * @return  this
+     */
+    public C2DMServiceBuilder withJournal(File directory, int segmentSize, long syncInterval) {
+        this.journalDirectory = directory;
+        this.journalSegmentSize = segmentSize;
+        this.journalSyncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * Sets the timeout for the connection.  The timeout also applies to
+     * the logins of a {@link ClientLogin} token provider, using a copy of
+     * the provider, so that one shared by other services is left as is.
      *
      * @param   timeout     the time out period in millis
      * @return this
@@ -186,6 +581,287 @@ public class C2DMServiceBuilder {
         return this;
     }
 
+    /**
+     * Sets the maximum time a pooled connection is used for since it was
+     * opened, after which it is closed rather than reused, so that traffic
+     * is periodically rebalanced across Google front ends.
+     *
+     * By default connections are reused for as long as they stay open.
+     *
+     * @param   ttl     the time to live of a connection in millis
+     * @return  this
+     */
+    public C2DMServiceBuilder withConnectionTtl(long ttl) {
+        this.connectionTtl = ttl;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time an idle connection is kept alive for reuse.
+     * A shorter timeout advertised by the servers through the
+     * {@code Keep-Alive} header is honored.  Set this below the idle
+     * timeout of any NAT or firewall on the way to Google servers, so that
+     * connections they silently dropped are not reused.
+     *
+     * By default connections are kept alive for as long as the servers
+     * allow.
+     *
+     * @param   keepAlive   the maximum keep-alive time in millis
+     * @return  this
+     */
+    public C2DMServiceBuilder withKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Closes pooled connections in the background once they have been idle
+     * for {@code idleMillis}, or have outlived their
+     * {@link #withConnectionTtl(long) time to live} or
+     * {@link #withKeepAlive(long) keep-alive} time, instead of discovering
+     * them dead when sending the next message.
+     *
+     * The number of evicted connections is available through
+     * {@link PoolMetrics}.  This has no effect on non-blocking services or
+     * custom {@link HttpClient}s.
+     *
+     * @param   idleMillis  the time in millis a connection may stay idle
+     * @return  this
+     */
+    public C2DMServiceBuilder withIdleConnectionEviction(long idleMillis) {
+        this.idleEviction = idleMillis;
+        return this;
+    }
+
+    /**
+     * Sets whether a pooled connection is checked for having been closed
+     * by the server before each reuse.  The check costs up to a
+     * millisecond per message; it is safe to disable when idle connections
+     * are {@link #withIdleConnectionEviction(long) evicted} ahead of the
+     * server closing them.
+     *
+     * Default value is true.
+     *
+     * @return  this
+     */
+    public C2DMServiceBuilder withStaleConnectionCheck(boolean staleCheck) {
+        this.staleCheck = staleCheck;
+        return this;
+    }
+
+    /**
+     * Opens connections to Google servers when the service starts, in
+     * parallel, so that the first messages don't pay for the DNS lookup,
+     * TCP and TLS setup of every pooled connection.  The service is only
+     * returned once the connections are open or failed to open.
+     *
+     * The count is capped by the size of the pool.  This has no effect on
+     * non-blocking services or custom {@link HttpClient}s.
+     *
+     * @param   connections     the number of connections to open
+     * @return  this
+     */
+    public C2DMServiceBuilder withPrewarmedConnections(int connections) {
+        this.prewarmConnections = connections;
+        return this;
+    }
+
+    /**
+     * Sets the resolution in millis of the send times of messages
+     * scheduled through {@link C2DMService#pushAt}; 10 millis by default.
+     * Scheduled messages are sent on the first tick of this resolution
+     * following their send time.
+     *
+     * @param resolution    the tick of the scheduler in millis
+     * @return  this
+     */
+    public C2DMServiceBuilder withScheduleResolution(long resolution) {
+        this.scheduleResolution = resolution;
+        return this;
+    }
+
+    /**
+     * Retries messages that Google servers ask to retry later, i.e. when
+     * {@link C2DMResponse#shouldRetry()}, with an initial backoff of one
+     * second that grows up to a minute.
+     *
+     * @see #withRetries(int, long, long)
+     */
+    public C2DMServiceBuilder withRetries(int maxAttempts) {
+        return withRetries(maxAttempts, 1000, 60000);
+    }
+
+    /**
+     * Retries messages that Google servers ask to retry later, i.e. when
+     * {@link C2DMResponse#shouldRetry()}.
+     *
+     * Retries are scheduled in the background without blocking new
+     * messages.  The backoff doubles with every attempt of a message, up to
+     * {@code maxBackoff}, and each delay is randomized between half and the
+     * full backoff to avoid all retries hitting the servers at once.  A
+     * {@code Retry-After} header sent by the servers is honored as well.
+     *
+     * The delegate and any awaiting future are only notified of the final
+     * outcome of each message.
+     *
+     * @param maxAttempts   the maximum number of times a message is sent,
+     *          including the first attempt
+     * @param initialBackoff    the backoff in millis before the first retry
+     * @param maxBackoff    the maximum backoff in millis
+     * @return  this
+     */
+    public C2DMServiceBuilder withRetries(int maxAttempts, long initialBackoff, long maxBackoff) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+
+    /**
+     * Stops sending messages while Google servers are failing, with the
+     * circuit opening when half of the last 100 messages fail, staying open
+     * for 30 seconds, and closing after 5 successful probes.
+     *
+     * @see #withCircuitBreaker(double, int, int, long, int)
+     */
+    public C2DMServiceBuilder withCircuitBreaker() {
+        return withCircuitBreaker(0.5, 100, 20, 30000, 5);
+    }
+
+    /**
+     * Stops sending messages while Google servers are failing.
+     *
+     * The circuit opens when the rate of messages failing with
+     * {@link C2DMResponse#SERVER_UNAVAILABLE},
+     * {@link C2DMResponse#UNKNOWN_ERROR} or a network error reaches
+     * {@code failureRate}.  While the circuit is open, pushed messages fail
+     * fast with a {@link com.notnoop.c2dm.exceptions.CircuitOpenException};
+     * queued services hold the messages in their queue instead.  After
+     * {@code openMillis}, a few probe messages are sent, and the circuit
+     * closes once they succeed.
+     *
+     * The state of the circuit is available through
+     * {@link CircuitBreakerMetrics}, and changes are reported to the
+     * {@link #withCircuitBreakerListener(CircuitBreakerListener) listener}.
+     *
+     * @param failureRate   the rate of failed messages, between 0 and 1, at
+     *          which the circuit opens
+     * @param windowSize    the number of most recent messages the failure
+     *          rate is computed over
+     * @param minimumRequests   the minimum number of messages sent before
+     *          the circuit may open
+     * @param openMillis    the time in millis the circuit stays open
+     * @param probes    the number of successful probe messages required
+     *          to close the circuit
+     * @return  this
+     */
+    public C2DMServiceBuilder withCircuitBreaker(double failureRate, int windowSize,
+            int minimumRequests, long openMillis, int probes) {
+        this.hasCircuitBreaker = true;
+        this.failureRate = failureRate;
+        this.failureWindow = windowSize;
+        this.failureMinimum = minimumRequests;
+        this.openMillis = openMillis;
+        this.probes = probes;
+        return this;
+    }
+
+    /**
+     * Specify the listener notified when the circuit breaker changes state.
+     *
+     * @param listener  the listener
+     * @return  this
+     */
+    public C2DMServiceBuilder withCircuitBreakerListener(CircuitBreakerListener listener) {
+        this.circuitBreakerListener = listener;
+        return this;
+    }
+
+    /**
+     * Limits the rate of messages sent to Google servers, with a burst of
+     * 10 millis worth of messages.
+     *
+     * @see #withRateLimit(double, int)
+     */
+    public C2DMServiceBuilder withRateLimit(double messagesPerSecond) {
+        return withRateLimit(messagesPerSecond, Math.max(1, (int) (messagesPerSecond / 100)));
+    }
+
+    /**
+     * Limits the rate of messages sent to Google servers.
+     *
+     * Messages are smoothed to the given rate before they are sent: pushing
+     * blocks the caller, or the queue threads of queued services, until
+     * the message is due.  When the servers respond with
+     * {@link C2DMResponse#QUOTA_EXCEEDED}, the rate is lowered
+     * temporarily, recovering once the servers accept messages again.
+     *
+     * @param messagesPerSecond the target rate
+     * @param burst the number of messages that may be sent at once after
+     *          an idle period
+     * @return  this
+     */
+    public C2DMServiceBuilder withRateLimit(double messagesPerSecond, int burst) {
+        this.rateLimit = messagesPerSecond;
+        this.rateBurst = burst;
+        return this;
+    }
+
+    /**
+     * Limits the rate of messages sent to Google servers for each
+     * collapse key, in addition to any global rate limit.  The limiter
+     * keeps state for every collapse key seen, so this is intended for a
+     * bounded set of collapse keys.
+     *
+     * @param messagesPerSecond the target rate for each collapse key
+     * @param burst the number of messages with the same collapse key that
+     *          may be sent at once after an idle period
+     * @return  this
+     */
+    public C2DMServiceBuilder withCollapseKeyRateLimit(double messagesPerSecond, int burst) {
+        this.keyRateLimit = messagesPerSecond;
+        this.keyRateBurst = burst;
+        return this;
+    }
+
+    /**
+     * Holds back messages to devices that exceeded their quota, tracking
+     * up to 10,000 devices, throttled for 10 seconds at first and up to 10
+     * minutes.
+     *
+     * @see #withDeviceThrottle(int, long, long)
+     */
+    public C2DMServiceBuilder withDeviceThrottle() {
+        return withDeviceThrottle(10000, 10000, 600000);
+    }
+
+    /**
+     * Holds back messages to devices that exceeded their quota.
+     *
+     * When Google servers respond with
+     * {@link C2DMResponse#DEVICE_QUOTA_EXCEEDED}, further messages to that
+     * device are deferred until the throttle expires, while messages to
+     * other devices keep flowing.  The throttle doubles each time the
+     * device exceeds its quota again.  Deferred messages with the same
+     * collapse key are coalesced into the latest one.
+     *
+     * The message that exceeded the quota is retried only if the service
+     * is built {@link #withRetries(int) with retries}.
+     *
+     * @param maxDevices    the maximum number of throttled devices to
+     *          track; the least recently throttled are forgotten first
+     * @param initialBackoff    the time in millis a device is throttled
+     *          after first exceeding its quota
+     * @param maxBackoff    the maximum time in millis a device is throttled
+     * @return  this
+     */
+    public C2DMServiceBuilder withDeviceThrottle(int maxDevices, long initialBackoff, long maxBackoff) {
+        this.throttledDevices = maxDevices;
+        this.deviceBackoff = initialBackoff;
+        this.maxDeviceBackoff = maxBackoff;
+        return this;
+    }
+
     public C2DMServiceBuilder withDelegate(C2DMDelegate delegate) {
         this.delegate = delegate;
         return this;
@@ -200,48 +876,221 @@ public class C2DMServiceBuilder {
     public C2DMService build() {
         checkInitialization();
 
-        // Client Configuration
-        HttpClient client;
-        if (httpClient != null) {
-            client = httpClient;
-        } else if (pooledMax == 1) {
-            client = new DefaultHttpClient();
-        } else {
-            client = new DefaultHttpClient(Utilities.poolManager(pooledMax));
+        AuthTokenProvider authTokenProvider = this.authTokenProvider;
+        if (authTokenProvider instanceof ClientLogin) {
+            authTokenProvider = ((ClientLogin) authTokenProvider).configure(timeout, proxy);
         }
 
-        if (proxy != null) {
-            client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
-        }
-
-        if (timeout > 0) {
-            HttpParams params = client.getParams();
-            HttpConnectionParams.setConnectionTimeout(params, timeout);
-            HttpConnectionParams.setSoTimeout(params, timeout);
+        String authToken = this.authToken;
+        if (authToken == null) {
+            try {
+                authToken = authTokenProvider.getAuthToken();
+            } catch (IOException e) {
+                throw new NetworkIOException("Cannot obtain an authentication token", e);
+            }
         }
 
         // Configure service
         AbstractC2DMService service;
-        if (pooledMax == 1) {
-            service = new C2DMServiceImpl(client, serviceUri, authToken, delegate);
+        ConnectionPool connectionPool = null;
+        if (isNonBlocking) {
+            DefaultHttpAsyncClient client = Utilities.asyncClient(nonBlockingMax, ioThreads);
+            configure(client.getParams());
+            if (keepAlive > 0) {
+                client.setKeepAliveStrategy(new KeepAlivePolicy(keepAlive));
+            }
+
+            service = new C2DMAsyncService(client, serviceUri, authToken, delegate);
         } else {
-            service = new C2DMPooledService(client, serviceUri, authToken, executor, delegate);
+            int maxConnections = pooledMax;
+            if (isQueued && pooledMax == 1) {
+                maxConnections = queueThreads;
+            }
+
+            HttpClient client;
+            if (httpClient != null) {
+                client = httpClient;
+            } else {
+                connectionPool = new ConnectionPool(maxConnections, connectionTtl);
+                connectionPool.setPrewarm(prewarmConnections, keepAlive);
+                if (idleEviction > 0) {
+                    connectionPool.evictIdleConnections(idleEviction);
+                }
+
+                DefaultHttpClient defaultClient = new DefaultHttpClient(connectionPool);
+                if (keepAlive > 0) {
+                    defaultClient.setKeepAliveStrategy(new KeepAlivePolicy(keepAlive));
+                }
+                client = defaultClient;
+            }
+            configure(client.getParams());
+
+            if (pooledMax == 1) {
+                service = new C2DMServiceImpl(client, serviceUri, authToken, delegate);
+            } else {
+                C2DMPooledService pooled = new C2DMPooledService(client, serviceUri, authToken,
+                        executor, delegate, maxInFlight);
+                if (orderedLanes >= 0) {
+                    pooled.setOrderedDelivery(orderedLanes > 0 ? orderedLanes : 4 * pooledMax);
+                }
+                service = pooled;
+            }
+        }
+
+        service.setConnectionPool(connectionPool);
+        if (authTokenProvider != null) {
+            service.getTokenRotation().setProvider(authTokenProvider, authTokenRefresh);
+        }
+
+        RetryScheduler retryScheduler = null;
+        if (maxAttempts > 1) {
+            retryScheduler = new RetryScheduler(maxAttempts, initialBackoff, maxBackoff);
+            service.setRetryScheduler(retryScheduler);
+        }
+
+        CircuitBreaker circuitBreaker = null;
+        if (hasCircuitBreaker) {
+            circuitBreaker = new CircuitBreaker(failureRate, failureWindow, failureMinimum,
+                    openMillis, probes, isQueued, circuitBreakerListener);
+            service.setCircuitBreaker(circuitBreaker);
+        }
+
+        if (rateLimit > 0 || keyRateLimit > 0) {
+            service.setRateLimiter(new RateLimiter(rateLimit, rateBurst, keyRateLimit, keyRateBurst));
+        }
+
+        DeviceThrottle deviceThrottle = null;
+        if (throttledDevices > 0) {
+            deviceThrottle = new DeviceThrottle(throttledDevices, deviceBackoff, maxDeviceBackoff, 16);
+            service.setDeviceThrottle(deviceThrottle);
+        }
+
+        if (isQueued && priorityWeights != null) {
+            if (isNonBlocking) {
+                service.setDispatchLimit(2 * nonBlockingMax);
+            } else if (pooledMax != 1) {
+                service.setDispatchLimit(2 * pooledMax);
+            }
         }
 
         if (isQueued) {
-            service = new C2DMQueuedService(service, serviceUri, authToken);
+            C2DMQueuedService queued = new C2DMQueuedService(service, serviceUri, authToken,
+                    queueCapacity, overflowPolicy, queueBlockTimeout, queueThreads,
+                    queueBatchSize, queueLinger, queueCoalescing);
+            queued.setCompact(queueCompact);
+            if (priorityWeights != null) {
+                queued.setPriorityWeights(priorityWeights[0], priorityWeights[1], priorityWeights[2]);
+            }
+            if (journalDirectory != null) {
+                try {
+                    queued.setJournal(new Journal(journalDirectory, journalSegmentSize, journalSyncInterval));
+                } catch (IOException e) {
+                    throw new RuntimeIOException(e);
+                }
+            }
+            service = queued;
+            // for the metrics only; the queue itself is never short-circuited
+            if (circuitBreaker != null) {
+                service.setCircuitBreaker(circuitBreaker);
+            }
+            service.setConnectionPool(connectionPool);
+        }
+
+        service.setScheduleResolution(scheduleResolution);
+        if (retryScheduler != null) {
+            retryScheduler.setTarget(service);
+        }
+        if (deviceThrottle != null) {
+            deviceThrottle.setTarget(service);
         }
 
         service.start();
         return service;
     }
 
+    private void configure(HttpParams params) {
+        if (proxy != null) {
+            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+        }
+
+        if (timeout > 0) {
+            HttpConnectionParams.setConnectionTimeout(params, timeout);
+            HttpConnectionParams.setSoTimeout(params, timeout);
+        }
+
+        HttpConnectionParams.setStaleCheckingEnabled(params, staleCheck);
+    }
+
     private void checkInitialization() {
-        if (authToken == null) {
-            throw new IllegalStateException("AuthToken is required");
+        if (authToken == null && authTokenProvider == null) {
+            throw new IllegalStateException("AuthToken or AuthTokenProvider is required");
         }
         if (pooledMax != 1 && executor == null) {
             throw new IllegalStateException("Executor service is required for pooled connections");
         }
+        if (isNonBlocking && (pooledMax != 1 || httpClient != null)) {
+            throw new IllegalStateException("Non-blocking service cannot use a pool or a custom HttpClient");
+        }
+        if (isNonBlocking && (nonBlockingMax < 1 || ioThreads < 1)) {
+            throw new IllegalStateException("Non-blocking service requires connections and I/O threads");
+        }
+        if (scheduleResolution < 1) {
+            throw new IllegalStateException("Schedule resolution must be positive");
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalStateException("At least one attempt is required");
+        }
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalStateException("Invalid retry backoff");
+        }
+        if (hasCircuitBreaker && !(failureRate > 0 && failureRate <= 1)) {
+            throw new IllegalStateException("Circuit breaker failure rate must be in (0, 1]");
+        }
+        if (hasCircuitBreaker && (failureWindow < 1 || failureMinimum < 1 || failureMinimum > failureWindow)) {
+            throw new IllegalStateException("Circuit breaker requires a window of at least the minimum requests");
+        }
+        if (hasCircuitBreaker && (openMillis < 0 || probes < 1)) {
+            throw new IllegalStateException("Invalid circuit breaker open time or probes");
+        }
+        if (rateBurst < 1 || keyRateBurst < 1) {
+            throw new IllegalStateException("Rate limit burst must be positive");
+        }
+        if (throttledDevices > 0 && (deviceBackoff < 0 || maxDeviceBackoff < deviceBackoff)) {
+            throw new IllegalStateException("Invalid device throttle backoff");
+        }
+        if (orderedLanes >= 0 && (pooledMax == 1 || isNonBlocking)) {
+            throw new IllegalStateException("Ordered delivery requires a pooled service");
+        }
+        if (queueCoalescing && !isQueued) {
+            throw new IllegalStateException("Coalescing requires a queued service");
+        }
+        if (priorityWeights != null && !isQueued) {
+            throw new IllegalStateException("Priorities require a queued service");
+        }
+        if (priorityWeights != null
+                && (priorityWeights[0] < 1 || priorityWeights[1] < 1 || priorityWeights[2] < 1)) {
+            throw new IllegalStateException("Priority weights must be positive");
+        }
+        if (queueCompact && !isQueued) {
+            throw new IllegalStateException("Compact queue requires a queued service");
+        }
+        if (journalDirectory != null && !isQueued) {
+            throw new IllegalStateException("Journal requires a queued service");
+        }
+        if (journalDirectory != null && (journalSegmentSize < 4096 || journalSyncInterval <= 0)) {
+            throw new IllegalStateException("Invalid journal segment size or sync interval");
+        }
+        if (queueThreads < 1) {
+            throw new IllegalStateException("At least one queue thread is required");
+        }
+        if (queueCapacity < queueThreads) {
+            throw new IllegalStateException("Queue capacity must be at least the number of queue threads");
+        }
+        if (queueBatchSize < 1) {
+            throw new IllegalStateException("Queue batch size must be positive");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalStateException("Overflow policy is required for queued service");
+        }
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Obtains authentication tokens for the C2DM service from the Google
+ * ClientLogin endpoint, using the credentials of the role account
+ * registered for C2DM.
+ *
+ * Providers are immutable, so they may be shared by many services; a
+ * service built with a timeout or proxy uses a copy of its provider that
+ * logs in with them.
+ */
+public class ClientLogin implements AuthTokenProvider {
+    /** The Google ClientLogin endpoint */
+    public static final String DEFAULT_LOGIN_URI =
+        "https://www.google.com/accounts/ClientLogin";
+
+    /** The default connect and read timeout of logins, in millis */
+    public static final int DEFAULT_TIMEOUT = 30 * 1000;
+
+    private final String loginUri;
+    private final String email;
+    private final String password;
+    private final String source;
+    private final int timeout;
+    private final HttpHost proxy;
+
+    /**
+     * Constructs a provider logging in with the provided credentials.
+     *
+     * @param email     the email of the role account
+     * @param password  the password of the role account
+     * @param source    identifies the application, as
+     *              {@code companyName-applicationName-versionID}
+     */
+    public ClientLogin(String email, String password, String source) {
+        this(DEFAULT_LOGIN_URI, email, password, source);
+    }
+
+    /**
+     * Constructs a provider logging in against the provided endpoint,
+     * mainly for testing.
+     */
+    public ClientLogin(String loginUri, String email, String password, String source) {
+        this(loginUri, email, password, source, DEFAULT_TIMEOUT, null);
+    }
+
+    /**
+     * Constructs a provider logging in against the provided endpoint,
+     * with the provided connection settings.
+     *
+     * @param timeout   the connect and read timeout of logins in millis,
+     *              so that a login that hangs doesn't hold up the token
+     *              refreshes and the messages waiting for them, or
+     *              non-positive to wait forever
+     * @param proxy     the HTTP proxy logins go through, or {@code null}
+     *              to connect directly
+     */
+    public ClientLogin(String loginUri, String email, String password, String source,
+            int timeout, HttpHost proxy) {
+        this.loginUri = loginUri;
+        this.email = email;
+        this.password = password;
+        this.source = source;
+        this.timeout = timeout;
+        this.proxy = proxy;
+    }
+
+    /**
+     * Returns a copy of this provider using the timeout and proxy of a
+     * service, where they are set.
+     */
+    ClientLogin configure(int timeout, HttpHost proxy) {
+        return new ClientLogin(loginUri, email, password, source,
+                timeout > 0 ? timeout : this.timeout,
+                proxy != null ? proxy : this.proxy);
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public HttpHost getProxy() {
+        return proxy;
+    }
+
+    public String getAuthToken() throws IOException {
+        List<NameValuePair> form = new ArrayList<NameValuePair>();
+        form.add(new BasicNameValuePair("accountType", "HOSTED_OR_GOOGLE"));
+        form.add(new BasicNameValuePair("Email", email));
+        form.add(new BasicNameValuePair("Passwd", password));
+        form.add(new BasicNameValuePair("service", "ac2dm"));
+        form.add(new BasicNameValuePair("source", source));
+
+        HttpPost method = new HttpPost(loginUri);
+        method.setEntity(new UrlEncodedFormEntity(form, "UTF-8"));
+
+        // logins are rare enough not to keep connections around
+        HttpClient client = new DefaultHttpClient();
+        HttpParams params = client.getParams();
+        if (timeout > 0) {
+            HttpConnectionParams.setConnectionTimeout(params, timeout);
+            HttpConnectionParams.setSoTimeout(params, timeout);
+        }
+        if (proxy != null) {
+            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+        }
+        try {
+            HttpResponse response = client.execute(method);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("ClientLogin returned no content");
+            }
+
+            String authToken = null, error = null;
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(entity.getContent(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("Auth=")) {
+                        authToken = line.substring("Auth=".length());
+                    } else if (line.startsWith("Error=")) {
+                        error = line.substring("Error=".length());
+                    }
+                }
+            } finally {
+                EntityUtils.consume(entity);
+            }
+
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK || authToken == null) {
+                throw new IOException("ClientLogin failed with status " + status
+                        + (error == null ? "" : ": " + error));
+            }
+            return authToken;
+        } finally {
+            client.getConnectionManager().shutdown();
+        }
+    }
+}
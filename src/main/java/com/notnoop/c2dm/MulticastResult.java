@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the aggregate outcome of sending a message to many devices,
+ * or to a chunk of them.
+ *
+ * @see C2DMService#multicast(Iterable, C2DMNotification)
+ */
+public class MulticastResult {
+    private final int successCount;
+    private final Map<C2DMResponse, Integer> failureCounts;
+    private final int errorCount;
+    private final List<String> unregisteredIds;
+
+    public MulticastResult(int successCount, Map<C2DMResponse, Integer> failureCounts,
+            int errorCount, List<String> unregisteredIds) {
+        this.successCount = successCount;
+        this.failureCounts = Collections.unmodifiableMap(
+                new EnumMap<C2DMResponse, Integer>(failureCounts));
+        this.errorCount = errorCount;
+        this.unregisteredIds = Collections.unmodifiableList(unregisteredIds);
+    }
+
+    /**
+     * Returns the total number of devices the message was sent to.
+     */
+    public int getTotalCount() {
+        int total = successCount + errorCount;
+        for (int count : failureCounts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of devices the message was accepted for
+     */
+    public int getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * Returns the number of devices the message was rejected for, by the
+     * response of Google servers
+     */
+    public Map<C2DMResponse, Integer> getFailureCounts() {
+        return failureCounts;
+    }
+
+    /**
+     * Returns the number of devices the message was rejected for with the
+     * given response
+     */
+    public int getFailureCount(C2DMResponse response) {
+        Integer count = failureCounts.get(response);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the number of devices the message couldn't be sent to at
+     * all, e.g. due to network errors
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Returns the registration ids Google reported as invalid or no longer
+     * registered, which the application should stop sending messages to
+     */
+    public List<String> getUnregisteredIds() {
+        return unregisteredIds;
+    }
+
+    @Override
+    public String toString() {
+        return "MulticastResult[successes: " + successCount + ", failures: " + failureCounts
+            + ", errors: " + errorCount + ", unregistered: " + unregisteredIds.size() + "]";
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm;
+
+/**
+ * Exposes the utilization of the connection pool of a {@link C2DMService},
+ * so that applications can size the pool and alert on its saturation.
+ *
+ * All services built by {@link C2DMServiceBuilder} implement this
+ * interface.  Non-blocking services and services using a custom
+ * {@link org.apache.http.client.HttpClient} report no connections.
+ */
+public interface PoolMetrics {
+    /**
+     * Returns the maximum number of connections the pool may hold.
+     */
+    int getMaxConnections();
+
+    /**
+     * Returns the number of connections currently sending a message.
+     */
+    int getLeasedConnections();
+
+    /**
+     * Returns the number of open connections currently idle in the pool.
+     */
+    int getAvailableConnections();
+
+    /**
+     * Returns the number of requests currently waiting for a connection,
+     * which is positive only when the pool is saturated.
+     */
+    int getPendingConnectionRequests();
+
+    /**
+     * Returns the number of connections closed so far by the idle
+     * connection reaper, for being idle or past their time to live.
+     */
+    long getEvictedConnectionCount();
+}
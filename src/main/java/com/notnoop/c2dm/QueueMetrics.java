@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm;
+
+/**
+ * Exposes the saturation of a queued {@link C2DMService}, so that
+ * applications can monitor and alert on it.
+ *
+ * Services built with {@link C2DMServiceBuilder#asQueued()} implement this
+ * interface.
+ */
+public interface QueueMetrics {
+    /**
+     * Returns the number of messages currently waiting in the queue.
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of messages of the priority currently waiting in
+     * the queue.  All messages count as {@link Priority#NORMAL} unless the
+     * queue has priorities enabled.
+     */
+    int getQueueDepth(Priority priority);
+
+    /**
+     * Returns the average time in millis the messages of the priority
+     * taken off the queue so far had waited in it.
+     */
+    double getAverageWaitTime(Priority priority);
+
+    /**
+     * Returns the longest time in millis a message of the priority taken
+     * off the queue so far had waited in it.
+     */
+    long getMaxWaitTime(Priority priority);
+
+    /**
+     * Returns the maximum number of messages the queue may hold, or
+     * {@link Integer#MAX_VALUE} if the queue is unbounded.  When the queue
+     * has priorities enabled, messages of each priority may fill this
+     * capacity on their own.
+     */
+    int getQueueCapacity();
+
+    /**
+     * Returns the number of messages rejected so far because the queue
+     * was full.
+     */
+    long getRejectedCount();
+
+    /**
+     * Returns the number of queued messages discarded so far to make room
+     * for newer ones, under {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    long getDroppedCount();
+
+    /**
+     * Returns the number of messages pushed so far while a message with
+     * the same registration id and collapse key was waiting, when the
+     * queue coalesces messages.
+     */
+    long getCoalesceHitCount();
+
+    /**
+     * Returns the number of waiting messages replaced so far by a newer
+     * message with the same registration id and collapse key, and thus
+     * never sent.  This may fall short of the hit count, when the waiting
+     * message was taken for sending at the same time.
+     */
+    long getReplacedCount();
+}
@@ -30,41 +30,177 @@
  */
 package com.notnoop.c2dm.internal;
 
-import java.io.UnsupportedEncodingException;
-import java.util.concurrent.atomic.AtomicReference;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
 
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.Header;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 
 import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResult;
 import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.CircuitBreakerMetrics;
+import com.notnoop.c2dm.CircuitState;
+import com.notnoop.c2dm.MulticastListener;
+import com.notnoop.c2dm.MulticastResult;
+import com.notnoop.c2dm.PoolMetrics;
+import com.notnoop.c2dm.exceptions.CircuitOpenException;
 import com.notnoop.c2dm.exceptions.NetworkIOException;
 
-public abstract class AbstractC2DMService implements C2DMService {
-    private final String serviceUri;
-    private final AtomicReference<String> authToken;
+public abstract class AbstractC2DMService implements C2DMService, CircuitBreakerMetrics, PoolMetrics {
+    private static final int MULTICAST_WINDOW = 1024;
+
+    private final URI serviceUri;
+    private final String authToken;
+    private volatile TokenRotation tokenRotation;
+    private volatile RetryScheduler retryScheduler;
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile RateLimiter rateLimiter;
+    private volatile DeviceThrottle deviceThrottle;
+    private volatile ConnectionPool connectionPool;
+    private volatile Semaphore dispatchLimit;
+
+    private volatile long scheduleResolution = 10;
+    private volatile TimingWheel timingWheel;
 
     protected AbstractC2DMService(String serviceUri, String authToken) {
-        this.serviceUri = serviceUri;
-        this.authToken = new AtomicReference<String>(authToken);
+        this.serviceUri = URI.create(serviceUri);
+        this.authToken = authToken;
+    }
+
+    /**
+     * Returns the HTTP request sending the message of the given request,
+     * with the current authentication token.
+     */
+    protected HttpPost postMessage(PushRequest request) {
+        Header authorization = getTokenRotation().getAuthorization();
+        request.setAuthorization(authorization);
+        return postMessage(request.getRegistrationId(), request.getMessage(), authorization);
     }
 
     protected HttpPost postMessage(String registrationId, C2DMNotification notification) {
+        return postMessage(registrationId, notification, getTokenRotation().getAuthorization());
+    }
+
+    private HttpPost postMessage(String registrationId, C2DMNotification notification,
+            Header authorization) {
         HttpPost method = new HttpPost(serviceUri);
+        method.setEntity(new NotificationEntity(registrationId, notification));
+        method.addHeader(authorization);
+
+        return method;
+    }
+
+    /**
+     * Returns a request to send the message of the given request again.
+     */
+    protected PushRequest retryOf(PushRequest request) {
+        return new PushRequest(request.getRegistrationId(), request.getMessage(),
+                request.getFuture(), request.getAttempt() + 1);
+    }
+
+    protected abstract void push(PushRequest request);
+
+    /**
+     * Defers the request if its device is throttled, checks with the
+     * circuit breaker, if any, whether the request may be sent now, then
+     * waits for the rate limiter, if any.  Depending on the breaker, this
+     * may also wait for the circuit to close.
+     *
+     * @return  true if the request may be sent, false if it was deferred
+     *          or failed
+     * @throws CircuitOpenException if the request may not be sent and
+     *          nobody awaits its outcome
+     */
+    protected boolean admit(PushRequest request) {
+        DeviceThrottle deviceThrottle = this.deviceThrottle;
+        if (deviceThrottle != null && deviceThrottle.defer(request)) {
+            return false;
+        }
+
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (circuitBreaker != null) {
+            try {
+                circuitBreaker.acquire();
+            } catch (CircuitOpenException e) {
+                if (!request.fail(e)) {
+                    throw e;
+                }
+                return false;
+            }
+        }
+
+        RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null) {
+            rateLimiter.acquire(request);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until fewer requests than the dispatch limit, if any, are
+     * awaiting responses.  Callers must {@link #releaseDispatch() release}
+     * the slot once the response is handled.
+     *
+     * @return  true if the request may be dispatched, false if the thread
+     *          was interrupted and the request failed
+     */
+    protected boolean acquireDispatch(PushRequest request) {
+        Semaphore dispatchLimit = this.dispatchLimit;
+        if (dispatchLimit == null) {
+            return true;
+        }
+
         try {
-            method.setEntity(new UrlEncodedFormEntity(
-                    Utilities.requestBodyOf(registrationId, notification),
-                    "UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-            throw new AssertionError("No UTF-8! It's Doom Day!");
+            dispatchLimit.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.fail(e);
+            return false;
         }
+    }
 
-        method.addHeader("Authorization", "GoogleLogin auth=" + authToken.get());
+    protected void releaseDispatch() {
+        Semaphore dispatchLimit = this.dispatchLimit;
+        if (dispatchLimit != null) {
+            dispatchLimit.release();
+        }
+    }
 
-        return method;
+    /**
+     * Records a request that failed to reach Google servers with the
+     * circuit breaker, if any.
+     */
+    protected void recordNetworkFailure() {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (circuitBreaker != null) {
+            circuitBreaker.record(true);
+        }
     }
 
-    protected abstract void push(HttpPost request, C2DMNotification message);
+    /**
+     * Sends a batch of requests, one at a time.
+     *
+     * C2DM takes a single message per HTTP request, so no service sends
+     * a batch any differently yet; subclasses may override this if they
+     * can.  A failure of one request doesn't prevent the rest of the batch
+     * from being sent: it is reported to the future of the request, if
+     * any, and never thrown, as the caller is a drain thread with nobody
+     * to report it to.
+     */
+    protected void push(List<PushRequest> batch) {
+        for (PushRequest request : batch) {
+            try {
+                push(request);
+            } catch (RuntimeException e) {
+                request.fail(e);
+            }
+        }
+    }
 
     public void push(String registrationId, String payload)
             throws NetworkIOException {
@@ -73,14 +209,236 @@ public abstract class AbstractC2DMService implements C2DMService {
 
     public void push(String registrationId, C2DMNotification message)
             throws NetworkIOException {
-        this.push(postMessage(registrationId, message), message);
+        this.push(new PushRequest(registrationId, message));
+    }
+
+    public CompletableFuture<C2DMResult> pushAsync(String registrationId, C2DMNotification message) {
+        CompletableFuture<C2DMResult> future = new CompletableFuture<C2DMResult>();
+        try {
+            this.push(new PushRequest(registrationId, message, future));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<C2DMResult> pushAt(String registrationId, C2DMNotification message,
+            long sendTime) {
+        CompletableFuture<C2DMResult> future = new CompletableFuture<C2DMResult>();
+        try {
+            schedule(new PushRequest(registrationId, message, future), sendTime);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Schedules the request to be pushed at the given time.
+     *
+     * @param sendTime  the time in millis since the epoch to send at
+     */
+    protected void schedule(PushRequest request, long sendTime) {
+        getTimingWheel().schedule(request, sendTime);
+    }
+
+    /**
+     * Pushes a scheduled request once due; called from a dispatch
+     * thread of the timing wheel.
+     */
+    protected void pushScheduled(PushRequest request) {
+        push(request);
+    }
+
+    /**
+     * Returns the timing wheel holding the scheduled requests, starting
+     * it on first use.
+     */
+    public TimingWheel getTimingWheel() {
+        TimingWheel timingWheel = this.timingWheel;
+        if (timingWheel == null) {
+            synchronized (this) {
+                timingWheel = this.timingWheel;
+                if (timingWheel == null) {
+                    timingWheel = new TimingWheel(this, scheduleResolution);
+                    this.timingWheel = timingWheel;
+                }
+            }
+        }
+        return timingWheel;
+    }
+
+    /**
+     * Sets the resolution in millis of the send times of scheduled
+     * messages; must be set before scheduling any.
+     */
+    public void setScheduleResolution(long scheduleResolution) {
+        this.scheduleResolution = scheduleResolution;
+    }
+
+    public CompletableFuture<MulticastResult> multicast(Iterable<String> registrationIds,
+            C2DMNotification message, int chunkSize, MulticastListener listener) {
+        return new Multicast(this, message, chunkSize, listener, MULTICAST_WINDOW)
+            .send(registrationIds);
     }
 
     public void start() {}
 
-    public void stop() {}
+    /**
+     * Opens the connections to pre-warm in the pool, if any, as the given
+     * client would open them to send messages.
+     */
+    protected void prewarm(HttpClient client) {
+        ConnectionPool connectionPool = this.connectionPool;
+        if (connectionPool != null && connectionPool.getPrewarmCount() > 0) {
+            connectionPool.prewarm(Utilities.routeOf(client, serviceUri), client.getParams());
+        }
+    }
+
+    public void stop() {
+        TokenRotation tokenRotation = this.tokenRotation;
+        if (tokenRotation != null) {
+            tokenRotation.stop();
+        }
+        TimingWheel timingWheel = this.timingWheel;
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
+        RetryScheduler retryScheduler = this.retryScheduler;
+        if (retryScheduler != null) {
+            retryScheduler.stop();
+        }
+        DeviceThrottle deviceThrottle = this.deviceThrottle;
+        if (deviceThrottle != null) {
+            deviceThrottle.stop();
+        }
+    }
+
+    public RetryScheduler getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    public void setRetryScheduler(RetryScheduler retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public DeviceThrottle getDeviceThrottle() {
+        return deviceThrottle;
+    }
+
+    public void setDeviceThrottle(DeviceThrottle deviceThrottle) {
+        this.deviceThrottle = deviceThrottle;
+    }
+
+    /**
+     * Bounds the number of requests handed to background threads and
+     * awaiting responses; pushing blocks while the limit is reached.  This
+     * keeps the backlog of a wrapping queued service in its own queue,
+     * where it is ordered by priority, rather than in the first come,
+     * first served queue of an executor.  Must be set before the service
+     * starts.
+     *
+     * @param limit the maximum number of requests awaiting responses, or
+     *          non-positive for no limit
+     */
+    public void setDispatchLimit(int limit) {
+        this.dispatchLimit = limit > 0 ? new Semaphore(limit) : null;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public CircuitState getCircuitState() {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        return circuitBreaker == null ? CircuitState.CLOSED : circuitBreaker.getCircuitState();
+    }
+
+    public long getCircuitOpenedCount() {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        return circuitBreaker == null ? 0 : circuitBreaker.getCircuitOpenedCount();
+    }
+
+    public long getShortCircuitedCount() {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        return circuitBreaker == null ? 0 : circuitBreaker.getShortCircuitedCount();
+    }
+
+    public int getMaxConnections() {
+        ConnectionPool connectionPool = this.connectionPool;
+        return connectionPool == null ? 0 : connectionPool.getMaxTotal();
+    }
+
+    public int getLeasedConnections() {
+        ConnectionPool connectionPool = this.connectionPool;
+        return connectionPool == null ? 0 : connectionPool.getLeasedConnections();
+    }
+
+    public int getAvailableConnections() {
+        ConnectionPool connectionPool = this.connectionPool;
+        return connectionPool == null ? 0 : connectionPool.getAvailableConnections();
+    }
+
+    public int getPendingConnectionRequests() {
+        ConnectionPool connectionPool = this.connectionPool;
+        return connectionPool == null ? 0 : connectionPool.getPendingRequests();
+    }
+
+    public long getEvictedConnectionCount() {
+        ConnectionPool connectionPool = this.connectionPool;
+        return connectionPool == null ? 0 : connectionPool.getEvictedCount();
+    }
+
+    /**
+     * Returns the rotation holding the authentication token, creating it
+     * on first use.
+     */
+    public TokenRotation getTokenRotation() {
+        TokenRotation tokenRotation = this.tokenRotation;
+        if (tokenRotation == null) {
+            synchronized (this) {
+                tokenRotation = this.tokenRotation;
+                if (tokenRotation == null) {
+                    tokenRotation = new TokenRotation(this, authToken);
+                    this.tokenRotation = tokenRotation;
+                }
+            }
+        }
+        return tokenRotation;
+    }
 
     protected void updateAuthToken(String newAuthToken) {
-        this.authToken.set(newAuthToken);
+        getTokenRotation().update(newAuthToken);
+    }
+
+    /**
+     * Replays a request Google servers rejected for its authentication
+     * token, once a valid token is in place.
+     *
+     * @return  true if the request will be replayed, false if the
+     *          rejection should be reported
+     */
+    protected boolean replayUnauthorized(PushRequest request) {
+        return getTokenRotation().replay(request);
     }
 }
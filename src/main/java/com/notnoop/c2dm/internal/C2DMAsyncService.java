@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.concurrent.FutureCallback;
+
+import com.notnoop.c2dm.C2DMDelegate;
+import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.exceptions.NetworkIOException;
+
+/**
+ * Sends the messages through a non-blocking HTTP client.
+ *
+ * Requests are multiplexed over the pooled connections by a handful of
+ * I/O threads, so the number of messages in flight isn't bound by the
+ * number of threads.  Delegates are called from the I/O threads, and
+ * should return promptly.
+ */
+public class C2DMAsyncService extends AbstractC2DMService implements C2DMService {
+    private final HttpAsyncClient httpClient;
+    private final C2DMDelegate delegate;
+
+    public C2DMAsyncService(HttpAsyncClient httpClient, String serviceUri, String authToken, C2DMDelegate delegate) {
+        super(serviceUri, authToken);
+        this.httpClient = httpClient;
+        this.delegate = delegate;
+    }
+
+    @Override
+    protected void push(final PushRequest request) {
+        if (!admit(request) || !acquireDispatch(request)) {
+            return;
+        }
+
+        try {
+            execute(request);
+        } catch (RuntimeException e) {
+            releaseDispatch();
+            throw e;
+        }
+    }
+
+    private void execute(final PushRequest request) {
+        httpClient.execute(postMessage(request), new FutureCallback<HttpResponse>() {
+            public void completed(HttpResponse response) {
+                // The response entity is already buffered, so there is no
+                // connection to release.  Exceptions must not escape this
+                // callback, as they would terminate the I/O reactor.
+                try {
+                    Utilities.handleResponse(request, response, delegate, C2DMAsyncService.this, false);
+                } catch (IOException e) {
+                    request.fail(new NetworkIOException(e));
+                } catch (RuntimeException e) {
+                    request.fail(e);
+                } finally {
+                    releaseDispatch();
+                }
+            }
+
+            public void failed(Exception ex) {
+                // Like the pooled service, network failures of background
+                // sends are only reported to awaiting futures
+                try {
+                    if (ex instanceof IOException) {
+                        recordNetworkFailure();
+                        request.fail(new NetworkIOException((IOException) ex));
+                    } else {
+                        request.fail(ex);
+                    }
+                } finally {
+                    releaseDispatch();
+                }
+            }
+
+            public void cancelled() {
+                try {
+                    if (request.getFuture() != null) {
+                        request.getFuture().cancel(false);
+                    }
+                } finally {
+                    releaseDispatch();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        httpClient.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        try {
+            httpClient.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
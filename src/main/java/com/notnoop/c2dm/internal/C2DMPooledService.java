@@ -30,43 +30,139 @@
  */
 package com.notnoop.c2dm.internal;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.util.EntityUtils;
 
 import com.notnoop.c2dm.C2DMDelegate;
-import com.notnoop.c2dm.C2DMNotification;
 import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.exceptions.NetworkIOException;
 
 public class C2DMPooledService extends AbstractC2DMService implements C2DMService {
     private final HttpClient httpClient;
     private final ExecutorService executor;
     private final C2DMDelegate delegate;
+    private final Semaphore inFlight;
+    private volatile SerialLanes lanes;
 
     public C2DMPooledService(HttpClient httpClient, String serviceUri, String authToken, ExecutorService executor, C2DMDelegate delegate) {
+        this(httpClient, serviceUri, authToken, executor, delegate, -1);
+    }
+
+    /**
+     * @param maxInFlight   the maximum number of requests sent concurrently,
+     *          regardless of the number of executor threads; non-positive
+     *          if only bound by the executor
+     */
+    public C2DMPooledService(HttpClient httpClient, String serviceUri, String authToken, ExecutorService executor, C2DMDelegate delegate, int maxInFlight) {
         super(serviceUri, authToken);
         this.httpClient = httpClient;
         this.executor = executor;
         this.delegate = delegate;
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
     }
 
     @Override
-    protected void push(final HttpPost request, final C2DMNotification message) {
-        executor.execute(new Runnable() {
-            public void run() {
+    protected void push(final PushRequest request) {
+        if (!admit(request) || !acquireDispatch(request)) {
+            return;
+        }
+
+        try {
+            SerialLanes lanes = this.lanes;
+            if (lanes != null) {
+                lanes.submit(request);
+                return;
+            }
+
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        dispatch(request);
+                    } finally {
+                        releaseDispatch();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            releaseDispatch();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the messages to each device one at a time, in the order they
+     * are pushed, while still sending to different devices concurrently.
+     *
+     * @param lanes the number of lanes registration ids are hashed to
+     */
+    public void setOrderedDelivery(int lanes) {
+        this.lanes = lanes > 0 ? new SerialLanes(executor, lanes) {
+            protected void send(PushRequest request) {
+                try {
+                    dispatch(request);
+                } finally {
+                    releaseDispatch();
+                }
+            }
+
+            protected void discard(PushRequest request, RejectedExecutionException cause) {
                 try {
-                    HttpResponse response = httpClient.execute(request);
-                    Utilities.fireDelegate(message, response, delegate, C2DMPooledService.this);
-                    EntityUtils.consume(response.getEntity());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    request.fail(cause);
+                } finally {
+                    releaseDispatch();
                 }
             }
-        });
+        } : null;
+    }
+
+    private void dispatch(PushRequest request) {
+        if (inFlight == null) {
+            send(request);
+            return;
+        }
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.fail(e);
+            return;
+        }
+        try {
+            send(request);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private void send(PushRequest request) {
+        try {
+            HttpResponse response = httpClient.execute(postMessage(request));
+            Utilities.handleResponse(request, response, delegate, this, true);
+        } catch (IOException e) {
+            recordNetworkFailure();
+            NetworkIOException failure = new NetworkIOException(e);
+            if (!request.fail(failure)) {
+                throw failure;
+            }
+        } catch (Exception e) {
+            RuntimeException failure = new RuntimeException(e);
+            if (!request.fail(failure)) {
+                throw failure;
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        prewarm(httpClient);
     }
 
     @Override
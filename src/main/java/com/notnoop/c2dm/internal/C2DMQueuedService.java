@@ -30,37 +30,403 @@
  */
 package com.notnoop.c2dm.internal;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-
-import org.apache.http.client.methods.HttpPost;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResult;
 import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.OverflowPolicy;
+import com.notnoop.c2dm.Priority;
+import com.notnoop.c2dm.QueueMetrics;
+import com.notnoop.c2dm.exceptions.QueueFullException;
 
-public class C2DMQueuedService extends AbstractC2DMService implements C2DMService {
+/**
+ * Queues the messages and sends them to the wrapped service from
+ * background drain threads.
+ *
+ * Each drain thread owns a queue lane.  Messages are assigned to lanes by
+ * their registration id, so messages to the same device are handed to the
+ * wrapped service in order by the same thread, while messages to different
+ * devices are sent in parallel.  They are only sent in that order if the
+ * wrapped service sends each message before taking the next, as the
+ * blocking single-connection service does: pooled and non-blocking
+ * services send them concurrently unless ordered delivery is enabled on
+ * them, and retried messages are sent after later ones regardless.
+ *
+ * The queue capacity is divided evenly among the lanes, so a lane whose
+ * devices get most of the messages overflows while other lanes still have
+ * room.
+ *
+ * Optionally, the queue coalesces messages: a message pushed while an
+ * earlier message with the same registration id and collapse key is still
+ * waiting replaces the earlier one in its place in the queue, as the
+ * device would only show the latest one anyway.  Queue entries then only
+ * hold a place in the lane, and the message sent for an entry is looked
+ * up by its key when the entry is drained.
+ *
+ * Optionally, waiting messages are held in the compact binary form of
+ * {@link NotificationCodec}, and only decoded when drained.  Consecutive
+ * messages sharing a notification, as broadcasts do, share its encoding
+ * as well.
+ *
+ * Optionally, each lane holds a queue per {@link Priority}, and its drain
+ * thread takes messages from them in weighted fair order; see
+ * {@link PriorityLane}.  Each priority then has the capacity of the lane
+ * to itself, so that bulk messages never block more urgent ones; the
+ * queue as a whole then holds up to its capacity per priority.
+ *
+ * Optionally, messages are also appended to a {@link Journal} when queued,
+ * and acknowledged once they are sent or failed for good, so that the
+ * messages still waiting when the process dies are queued again when the
+ * service next starts.  Scheduled messages are journaled with their send
+ * time when scheduled, and scheduled again when the service next starts.
+ */
+public class C2DMQueuedService extends AbstractC2DMService implements C2DMService, QueueMetrics {
 
     private AbstractC2DMService service;
-    private BlockingQueue<Pair<HttpPost, C2DMNotification>> queue;
+    private final PriorityLane[] lanes;
     private AtomicBoolean started = new AtomicBoolean(false);
 
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeout;
+
+    private final int maxBatchSize;
+    private final long maxLinger;
+
+    /** the latest waiting message for each (registration id, collapse key) */
+    private final ConcurrentMap<String, PushRequest> pending;
+
+    private volatile Journal journal;
+    private volatile boolean prioritized;
+
+    private volatile boolean compact;
+    /** the last notification compacted, and its encoding */
+    private volatile Pair<C2DMNotification, byte[]> lastEncoded;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesceHits = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+
     public C2DMQueuedService(AbstractC2DMService service, String serviceUri, String authToken) {
+        this(service, serviceUri, authToken, Integer.MAX_VALUE, OverflowPolicy.BLOCK, -1, 1, 1, 0);
+    }
+
+    public C2DMQueuedService(AbstractC2DMService service, String serviceUri, String authToken,
+            int capacity, OverflowPolicy overflowPolicy, long blockTimeout, int threads,
+            int maxBatchSize, long maxLinger) {
+        this(service, serviceUri, authToken, capacity, overflowPolicy, blockTimeout, threads,
+                maxBatchSize, maxLinger, false);
+    }
+
+    /**
+     * @param capacity  the maximum number of messages waiting in the queue
+     * @param overflowPolicy    the action to take when the queue is full
+     * @param blockTimeout  the maximum time in millis to wait for space
+     *          under {@link OverflowPolicy#BLOCK}; negative to wait forever
+     * @param threads   the number of drain threads
+     * @param maxBatchSize  the maximum number of messages a drain thread
+     *          takes from the queue and dispatches at once
+     * @param maxLinger the maximum time in millis a drain thread waits for
+     *          a batch to fill up before dispatching it
+     * @param coalesce  whether a waiting message is replaced by a newer
+     *          one with the same registration id and collapse key
+     */
+    public C2DMQueuedService(AbstractC2DMService service, String serviceUri, String authToken,
+            int capacity, OverflowPolicy overflowPolicy, long blockTimeout, int threads,
+            int maxBatchSize, long maxLinger, boolean coalesce) {
         super(serviceUri, authToken);
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one drain thread is required");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        if (capacity < threads) {
+            throw new IllegalArgumentException("Queue capacity must be at least the number of drain threads");
+        }
+
         this.service = service;
-        this.queue = new LinkedBlockingQueue<Pair<HttpPost, C2DMNotification>>();
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout = blockTimeout;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLinger = maxLinger;
+        this.pending = coalesce ? new ConcurrentHashMap<String, PushRequest>() : null;
+
+        this.lanes = new PriorityLane[threads];
+        for (int i = 0; i < threads; ++i) {
+            int laneCapacity = capacity == Integer.MAX_VALUE ? capacity
+                    : capacity / threads + (i < capacity % threads ? 1 : 0);
+            lanes[i] = new PriorityLane(laneCapacity);
+        }
+    }
+
+    /**
+     * Sets the journal messages are persisted in while queued; must be
+     * set before the service starts.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Queues messages by their {@link C2DMNotification#getPriority()
+     * priority}, with each priority getting the share of the drain threads
+     * given by its weight while others have a backlog; must be set before
+     * the service starts.
+     *
+     * @throws IllegalArgumentException if a weight is below 1
+     */
+    public void setPriorityWeights(int high, int normal, int low) {
+        if (high < 1 || normal < 1 || low < 1) {
+            throw new IllegalArgumentException("Priority weights must be positive");
+        }
+        int[] weights = new int[Priority.values().length];
+        weights[Priority.HIGH.ordinal()] = high;
+        weights[Priority.NORMAL.ordinal()] = normal;
+        weights[Priority.LOW.ordinal()] = low;
+        for (PriorityLane lane : lanes) {
+            lane.setWeights(weights);
+        }
+        this.prioritized = true;
+    }
+
+    private Priority priorityOf(PushRequest request) {
+        return prioritized ? request.getMessage().getPriority() : Priority.NORMAL;
+    }
+
+    /**
+     * Sets whether waiting messages are held in compact binary form.
+     * Delegates and futures then receive decoded copies of the pushed
+     * notifications.
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    private PushRequest compact(PushRequest request) {
+        C2DMNotification message = request.getMessage();
+        Pair<C2DMNotification, byte[]> last = lastEncoded;
+        byte[] encoded;
+        if (last != null && last.key == message) {
+            encoded = last.value;
+        } else {
+            encoded = NotificationCodec.encode(message);
+            lastEncoded = Pair.of(message, encoded);
+        }
+        return request.compact(encoded);
     }
 
     @Override
-    protected void push(final HttpPost request, C2DMNotification message) {
+    protected void push(PushRequest request) {
         if (!started.get()) {
             throw new IllegalStateException("Service hans't been started or was closed");
         }
 
-        queue.add(Pair.of(request, message));
+        Journal journal = this.journal;
+        if (journal == null) {
+            offer(request, overflowPolicy, blockTimeout);
+            return;
+        }
+
+        request = journaled(request, journal.append(request.getRegistrationId(), request.getMessage()));
+        try {
+            offer(request, overflowPolicy, blockTimeout);
+        } catch (RuntimeException e) {
+            // a rejected message is not recovered either
+            request.fail(e);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void schedule(PushRequest request, long sendTime) {
+        if (!started.get()) {
+            throw new IllegalStateException("Service hans't been started or was closed");
+        }
+
+        Journal journal = this.journal;
+        if (journal == null) {
+            super.schedule(request, sendTime);
+            return;
+        }
+
+        request = journaled(request, journal.append(request.getRegistrationId(),
+                request.getMessage(), Math.max(sendTime, 1)));
+        try {
+            super.schedule(request, sendTime);
+        } catch (RuntimeException e) {
+            request.fail(e);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void pushScheduled(PushRequest request) {
+        if (journal == null) {
+            push(request);
+        } else {
+            // journaled when scheduled already
+            offer(request, overflowPolicy, blockTimeout);
+        }
+    }
+
+    /**
+     * Returns a request acknowledging its journal record once its outcome
+     * is known.  Messages nobody awaits are given a future to track it.
+     */
+    private PushRequest journaled(PushRequest request, final long offset) {
+        PushRequest journaled = request;
+        if (request.getFuture() == null) {
+            journaled = request.withFuture(new CompletableFuture<C2DMResult>());
+        }
+
+        final Journal journal = this.journal;
+        journaled.getFuture().whenComplete(new BiConsumer<C2DMResult, Throwable>() {
+            public void accept(C2DMResult result, Throwable failure) {
+                journal.acknowledge(offset);
+            }
+        });
+        return journaled;
+    }
+
+    private void offer(PushRequest request, OverflowPolicy overflowPolicy, long blockTimeout) {
+        String key = keyOf(request);
+        if (key == null) {
+            // coalesced messages stay as they are, as they are looked up by their key
+            enqueue(laneOf(request.getRegistrationId()), priorityOf(request),
+                    compact ? compact(request) : request, overflowPolicy, blockTimeout);
+            return;
+        }
+
+        for (;;) {
+            PushRequest older = pending.putIfAbsent(key, request);
+            if (older == null) {
+                break;
+            }
+            coalesceHits.incrementAndGet();
+            // a message coming back, e.g. as a retry, is older than the one
+            // waiting, which then replaces it instead
+            PushRequest latest = request.isResent() ? PushRequest.coalesce(request, older)
+                    : PushRequest.coalesce(older, request);
+            if (pending.replace(key, older, latest)) {
+                replaced.incrementAndGet();
+                return;
+            }
+            // the older message was just taken for sending
+        }
+
+        try {
+            enqueue(laneOf(request.getRegistrationId()), priorityOf(request), request,
+                    overflowPolicy, blockTimeout);
+        } catch (RuntimeException e) {
+            // newer messages may have been coalesced into this one already
+            PushRequest latest = pending.remove(key);
+            if (latest != null && latest != request) {
+                latest.fail(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the coalescing key of the request, or {@code null} if the
+     * request isn't coalesced.
+     */
+    private String keyOf(PushRequest request) {
+        if (pending == null) {
+            return null;
+        }
+
+        String collapseKey = request.getMessage().getCollapseKey();
+        if (request.getRegistrationId() == null || collapseKey == null) {
+            return null;
+        }
+        return request.getRegistrationId() + '\n' + collapseKey;
+    }
+
+    /**
+     * Returns the message to send for a drained queue entry, or
+     * {@code null} if there is none.
+     */
+    private PushRequest latestOf(PushRequest entry) {
+        String key = keyOf(entry);
+        return key == null ? entry : pending.remove(key);
+    }
+
+    private PriorityLane laneOf(String registrationId) {
+        if (lanes.length == 1 || registrationId == null) {
+            return lanes[0];
+        }
+
+        int h = registrationId.hashCode();
+        h ^= (h >>> 16);
+        return lanes[(h & 0x7fffffff) % lanes.length];
+    }
+
+    private void enqueue(PriorityLane lane, Priority priority, PushRequest entry,
+            OverflowPolicy overflowPolicy, long blockTimeout) {
+        BlockingQueue<PushRequest> queue = lane.queueOf(priority);
+        entry.setQueuedAt(System.nanoTime());
+        switch (overflowPolicy) {
+        case BLOCK:
+            try {
+                if (blockTimeout < 0) {
+                    queue.put(entry);
+                } else if (!queue.offer(entry, blockTimeout, TimeUnit.MILLISECONDS)) {
+                    reject("Timed out waiting for space in the queue");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reject("Interrupted while waiting for space in the queue");
+            }
+            break;
+        case REJECT:
+            if (!queue.offer(entry)) {
+                reject("Queue is full");
+            }
+            break;
+        case DROP_OLDEST:
+            while (!queue.offer(entry)) {
+                PushRequest oldest = queue.poll();
+                if (oldest != null) {
+                    lane.removed();
+                    oldest = latestOf(oldest);
+                }
+                if (oldest != null) {
+                    dropped.incrementAndGet();
+                    oldest.fail(new QueueFullException("Dropped to make room for a newer message"));
+                }
+            }
+            break;
+        default:
+            throw new AssertionError("Unknown overflow policy: " + overflowPolicy);
+        }
+        lane.added();
+    }
+
+    private void reject(String reason) {
+        rejected.incrementAndGet();
+        throw new QueueFullException(reason + " (capacity " + capacity
+                + (prioritized ? " per priority)" : ")"));
     }
 
-    private Thread thread;
+    private Thread[] threads;
     private volatile boolean shouldContinue;
 
     public void start() {
@@ -71,26 +437,209 @@ public class C2DMQueuedService extends AbstractC2DMService implements C2DMServic
 
         service.start();
         shouldContinue = true;
-        thread = new Thread() {
-            public void run() {
-                while (shouldContinue) {
-                    try {
-                        Pair<HttpPost, C2DMNotification> post = queue.take();
-                        service.push(post.getKey(), post.getValue());
-                    } catch (InterruptedException e) {}
+        threads = new Thread[lanes.length];
+        for (int i = 0; i < lanes.length; ++i) {
+            final PriorityLane queue = lanes[i];
+            threads[i] = new Thread("c2dm-queue-" + i) {
+                public void run() {
+                    List<PushRequest> batch = new ArrayList<PushRequest>(maxBatchSize);
+                    while (shouldContinue) {
+                        try {
+                            takeBatch(queue, batch);
+                            service.push(batch);
+                        } catch (InterruptedException e) {
+                        } catch (RuntimeException e) {
+                            // a message that couldn't be taken off the queue;
+                            // keep draining the lane regardless
+                            for (PushRequest request : batch) {
+                                request.fail(e);
+                            }
+                        } finally {
+                            batch.clear();
+                        }
+                    }
                 }
+            };
+            threads[i].start();
+        }
+
+        Journal journal = this.journal;
+        if (journal != null) {
+            recover(journal);
+        }
+    }
+
+    /**
+     * Queues the messages recovered from the journal, waiting for space in
+     * the queue regardless of the overflow policy, as they were accepted
+     * already.
+     */
+    private void recover(Journal journal) {
+        for (Journal.Record record : journal.recovered()) {
+            PushRequest request = journaled(new PushRequest(record.getRegistrationId(),
+                    record.getMessage()), record.getOffset());
+            if (record.getSendTime() > 0) {
+                super.schedule(request, record.getSendTime());
+                continue;
+            }
+            try {
+                offer(request, OverflowPolicy.BLOCK, -1);
+            } catch (QueueFullException e) {
+                // interrupted; the remaining messages are recovered on the next start
+                Thread.currentThread().interrupt();
+                return;
             }
-        };
-        thread.start();
+        }
     }
 
 
+    /**
+     * Waits for a message, then fills the batch with up to
+     * {@code maxBatchSize} messages, waiting at most {@code maxLinger}
+     * millis for more messages to arrive.
+     */
+    private void takeBatch(PriorityLane queue, List<PushRequest> batch)
+            throws InterruptedException {
+        batch.add(queue.take());
+        drainTo(queue, batch);
+
+        if (maxLinger > 0) {
+            linger(queue, batch);
+        }
+
+        if (compact) {
+            for (int i = 0; i < batch.size(); ++i) {
+                batch.set(i, batch.get(i).expand());
+            }
+        }
+
+        if (pending != null) {
+            for (int i = batch.size() - 1; i >= 0; --i) {
+                PushRequest latest = latestOf(batch.get(i));
+                if (latest == null) {
+                    batch.remove(i);
+                } else {
+                    batch.set(i, latest);
+                }
+            }
+        }
+    }
+
+    private void drainTo(PriorityLane queue, List<PushRequest> batch) {
+        while (batch.size() < maxBatchSize) {
+            PushRequest request = queue.poll();
+            if (request == null) {
+                break;
+            }
+            batch.add(request);
+        }
+    }
+
+    private void linger(PriorityLane queue, List<PushRequest> batch) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLinger);
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+
+            PushRequest request;
+            try {
+                request = queue.poll(remaining);
+            } catch (InterruptedException e) {
+                // dispatch what we have; the next take() observes the interrupt
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (request == null) {
+                break;
+            }
+            batch.add(request);
+            drainTo(queue, batch);
+        }
+    }
+
     @Override
     public void stop() {
         started.set(false);
         shouldContinue = false;
-        thread.interrupt();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
         service.stop();
+
+        // messages still waiting are recovered on the next start
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.close();
+        }
+        // scheduled messages are failed as well, once the journal is closed
+        super.stop();
+
+        List<PushRequest> remaining = new ArrayList<PushRequest>();
+        for (PriorityLane queue : lanes) {
+            queue.drainTo(remaining);
+        }
+        for (PushRequest entry : remaining) {
+            PushRequest request = latestOf(entry);
+            if (request == null) {
+                continue;
+            }
+            request.fail(new IllegalStateException("Service was stopped before sending the message"));
+        }
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (PriorityLane queue : lanes) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public int getQueueDepth(Priority priority) {
+        int depth = 0;
+        for (PriorityLane queue : lanes) {
+            depth += queue.size(priority);
+        }
+        return depth;
+    }
+
+    public double getAverageWaitTime(Priority priority) {
+        long taken = 0, waitNanos = 0;
+        for (PriorityLane queue : lanes) {
+            taken += queue.getTakenCount(priority);
+            waitNanos += queue.getWaitNanos(priority);
+        }
+        return taken == 0 ? 0 : waitNanos / 1e6 / taken;
+    }
+
+    public long getMaxWaitTime(Priority priority) {
+        long maxWaitNanos = 0;
+        for (PriorityLane queue : lanes) {
+            maxWaitNanos = Math.max(maxWaitNanos, queue.getMaxWaitNanos(priority));
+        }
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getCoalesceHitCount() {
+        return coalesceHits.get();
+    }
+
+    public long getReplacedCount() {
+        return replaced.get();
     }
 
 }
@@ -35,11 +35,8 @@ import java.io.IOException;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.util.EntityUtils;
 
 import com.notnoop.c2dm.C2DMDelegate;
-import com.notnoop.c2dm.C2DMNotification;
 import com.notnoop.c2dm.C2DMService;
 import com.notnoop.c2dm.exceptions.NetworkIOException;
 
@@ -54,19 +51,36 @@ public class C2DMServiceImpl extends AbstractC2DMService implements C2DMService
     }
 
     @Override
-    protected void push(HttpPost request, C2DMNotification message) {
+    protected void push(PushRequest request) {
+        if (!admit(request)) {
+            return;
+        }
+
         try {
-            HttpResponse response = httpClient.execute(request);
-            Utilities.fireDelegate(message, response, delegate, this);
-            EntityUtils.consume(response.getEntity());
+            HttpResponse response = httpClient.execute(postMessage(request));
+            Utilities.handleResponse(request, response, delegate, this, true);
         } catch (ClientProtocolException e) {
-            throw new RuntimeException(e);
+            RuntimeException failure = new RuntimeException(e);
+            if (!request.fail(failure)) {
+                throw failure;
+            }
         } catch (IOException e) {
-            throw new NetworkIOException(e);
+            recordNetworkFailure();
+            NetworkIOException failure = new NetworkIOException(e);
+            if (!request.fail(failure)) {
+                throw failure;
+            }
         }
     }
 
+    @Override
+    public void start() {
+        super.start();
+        prewarm(httpClient);
+    }
+
     public void stop() {
+        super.stop();
         this.httpClient.getConnectionManager().shutdown();
     }
 
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.notnoop.c2dm.C2DMResponse;
+import com.notnoop.c2dm.CircuitBreakerListener;
+import com.notnoop.c2dm.CircuitBreakerMetrics;
+import com.notnoop.c2dm.CircuitState;
+import com.notnoop.c2dm.exceptions.CircuitOpenException;
+
+/**
+ * Stops sending messages while Google servers are failing.
+ *
+ * The outcomes of the last {@code windowSize} requests are tracked; once
+ * at least {@code minimumRequests} were made and the rate of server errors
+ * ({@link C2DMResponse#SERVER_UNAVAILABLE}, {@link C2DMResponse#UNKNOWN_ERROR}
+ * and network failures) reaches {@code failureRate}, the circuit opens.
+ * After {@code openMillis}, the circuit half-opens and lets {@code probes}
+ * requests through: if they all succeed the circuit closes, and on the
+ * first failure it opens again.
+ *
+ * While the circuit is open, new requests either fail fast with a
+ * {@link CircuitOpenException}, or park the sending thread until requests
+ * are allowed again.  Parking suits queued services, whose queue absorbs
+ * the messages in the meantime.
+ */
+public class CircuitBreaker implements CircuitBreakerMetrics {
+    private static final long MAX_PARK_MILLIS = 100;
+
+    private final double failureRate;
+    private final int minimumRequests;
+    private final long openNanos;
+    private final int probes;
+    private final boolean park;
+    private final CircuitBreakerListener listener;
+
+    private volatile CircuitState state = CircuitState.CLOSED;
+
+    // guarded by this
+    private final boolean[] window;
+    private int next, count, failures;
+    private long stateSince;
+    private int probesLeft, probesSucceeded;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    /**
+     * @param failureRate   the rate of failed requests, between 0 and 1,
+     *          at which the circuit opens
+     * @param windowSize    the number of most recent requests the failure
+     *          rate is computed over
+     * @param minimumRequests   the minimum number of requests in the window
+     *          before the circuit may open
+     * @param openMillis    the time in millis the circuit stays open before
+     *          probing the servers
+     * @param probes    the number of successful probe requests required to
+     *          close the circuit
+     * @param park  whether to park sending threads while the circuit is
+     *          open, rather than failing fast
+     * @param listener  the listener notified of state changes, or
+     *          {@code null}
+     */
+    public CircuitBreaker(double failureRate, int windowSize, int minimumRequests,
+            long openMillis, int probes, boolean park, CircuitBreakerListener listener) {
+        this.failureRate = failureRate;
+        this.window = new boolean[windowSize];
+        this.minimumRequests = minimumRequests;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.probes = probes;
+        this.park = park;
+        this.listener = listener;
+    }
+
+    /**
+     * Waits until a request may be sent, or fails fast if the circuit is
+     * open and the breaker doesn't park.
+     *
+     * @throws CircuitOpenException if the request may not be sent
+     */
+    public void acquire() {
+        while (!tryAcquire()) {
+            if (!park) {
+                shortCircuited.incrementAndGet();
+                throw new CircuitOpenException("Circuit breaker is open");
+            }
+
+            try {
+                Thread.sleep(parkMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                shortCircuited.incrementAndGet();
+                throw new CircuitOpenException("Interrupted while waiting for the circuit breaker");
+            }
+        }
+    }
+
+    /**
+     * Returns whether a request may be sent now.
+     */
+    public boolean tryAcquire() {
+        if (state == CircuitState.CLOSED) {
+            return true;
+        }
+
+        CircuitState from;
+        synchronized (this) {
+            from = state;
+            long now = System.nanoTime();
+            switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - stateSince < openNanos) {
+                    return false;
+                }
+                transition(CircuitState.HALF_OPEN, now);
+                probesLeft = probes - 1;
+                break;
+            case HALF_OPEN:
+                if (probesLeft > 0) {
+                    probesLeft--;
+                    return true;
+                } else if (now - stateSince < openNanos) {
+                    return false;
+                }
+                // the probes never reported back, e.g. they failed locally
+                stateSince = now;
+                probesLeft = probes - 1;
+                return true;
+            }
+        }
+
+        fire(from, CircuitState.HALF_OPEN);
+        return true;
+    }
+
+    private long parkMillis() {
+        long remaining = 1;
+        synchronized (this) {
+            if (state == CircuitState.OPEN) {
+                remaining = TimeUnit.NANOSECONDS.toMillis(openNanos - (System.nanoTime() - stateSince));
+            }
+        }
+        return Math.max(1, Math.min(remaining, MAX_PARK_MILLIS));
+    }
+
+    /**
+     * Records the outcome of a request that got a response.
+     */
+    public void record(C2DMResponse response) {
+        record(response == C2DMResponse.SERVER_UNAVAILABLE
+                || response == C2DMResponse.UNKNOWN_ERROR);
+    }
+
+    /**
+     * Records the outcome of a request.
+     *
+     * @param failure   whether the request failed due to the servers or
+     *          the network
+     */
+    public void record(boolean failure) {
+        CircuitState from, to;
+        synchronized (this) {
+            from = state;
+            switch (state) {
+            case CLOSED:
+                if (count == window.length) {
+                    if (window[next]) {
+                        failures--;
+                    }
+                } else {
+                    count++;
+                }
+                window[next] = failure;
+                next = (next + 1) % window.length;
+                if (failure) {
+                    failures++;
+                }
+
+                if (failure && count >= minimumRequests && failures >= failureRate * count) {
+                    transition(CircuitState.OPEN, System.nanoTime());
+                }
+                break;
+            case HALF_OPEN:
+                if (failure) {
+                    transition(CircuitState.OPEN, System.nanoTime());
+                } else if (++probesSucceeded >= probes) {
+                    transition(CircuitState.CLOSED, System.nanoTime());
+                }
+                break;
+            case OPEN:
+                // late responses of requests sent before the circuit opened
+                break;
+            }
+            to = state;
+        }
+
+        if (from != to) {
+            fire(from, to);
+        }
+    }
+
+    private void transition(CircuitState to, long now) {
+        state = to;
+        stateSince = now;
+        next = count = failures = 0;
+        probesSucceeded = 0;
+        if (to == CircuitState.OPEN) {
+            opened.incrementAndGet();
+        }
+    }
+
+    private void fire(CircuitState from, CircuitState to) {
+        if (listener != null) {
+            listener.stateChanged(from, to);
+        }
+    }
+
+    public CircuitState getCircuitState() {
+        return state;
+    }
+
+    public long getCircuitOpenedCount() {
+        return opened.get();
+    }
+
+    public long getShortCircuitedCount() {
+        return shortCircuited.get();
+    }
+}
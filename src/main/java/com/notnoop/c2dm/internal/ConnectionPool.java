@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnPerRoute;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.tsccm.ConnPoolByRoute;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+
+/**
+ * A pool of connections to Google servers, for the blocking services.
+ *
+ * Connections are closed once they exceed their time to live, and once
+ * idle for too long if a reaper is started.  Connections may be opened
+ * ahead of the first messages, so that they don't pay for connection
+ * setup.  The pool exposes its
+ * utilization, for {@link com.notnoop.c2dm.PoolMetrics}.
+ */
+public final class ConnectionPool extends ThreadSafeClientConnManager {
+    private final AtomicLong evicted = new AtomicLong();
+    private volatile ScheduledThreadPoolExecutor reaper;
+
+    private int prewarmCount;
+    private long prewarmKeepAlive;
+
+    /**
+     * @param connectionTtl the time in millis a connection may be used
+     *          for since it was opened; non-positive for no limit
+     */
+    public ConnectionPool(int maxConnections, long connectionTtl) {
+        super(SchemeRegistryFactory.createDefault(), connectionTtl, TimeUnit.MILLISECONDS);
+        setMaxTotal(maxConnections);
+        setDefaultMaxPerRoute(maxConnections);
+    }
+
+    @Override
+    protected ConnPoolByRoute createConnectionPool(long connTTL, TimeUnit connTTLTimeUnit) {
+        return new MeteredPool(connOperator, connPerRoute, 20, connTTL, connTTLTimeUnit);
+    }
+
+    /**
+     * Starts closing, in the background, the connections that have been
+     * idle for longer than {@code idleMillis} or have expired.  Replaces
+     * the reaper started by an earlier call, if any.
+     */
+    public synchronized void evictIdleConnections(final long idleMillis) {
+        ScheduledThreadPoolExecutor reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "c2dm-pool-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long period = Math.max(idleMillis / 2, 10);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evicted.addAndGet(((MeteredPool) pool).evict(idleMillis));
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        ScheduledThreadPoolExecutor previous = this.reaper;
+        this.reaper = reaper;
+        if (previous != null) {
+            previous.shutdownNow();
+        }
+    }
+
+    /**
+     * Sets the number of connections {@link #prewarm} opens.
+     *
+     * @param keepAlive the time in millis pre-warmed connections are kept
+     *          for reuse; non-positive to keep them indefinitely
+     */
+    public void setPrewarm(int count, long keepAlive) {
+        this.prewarmCount = count;
+        this.prewarmKeepAlive = keepAlive;
+    }
+
+    public int getPrewarmCount() {
+        return prewarmCount;
+    }
+
+    /**
+     * Opens the configured number of connections to the route in parallel,
+     * including any TLS handshake, and returns them to the pool for reuse.
+     * Connections that fail to open are discarded, as messages would open
+     * them on demand anyway.
+     *
+     * @return  the number of connections opened
+     */
+    public int prewarm(final HttpRoute route, final HttpParams params) {
+        final ManagedClientConnection[] connections =
+            new ManagedClientConnection[Math.min(prewarmCount, getMaxForRoute(route))];
+
+        // all connections are leased before any is released, as the pool
+        // would otherwise hand out the same connection again
+        Thread[] threads = new Thread[connections.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread("c2dm-prewarm-" + i) {
+                public void run() {
+                    ManagedClientConnection connection = null;
+                    try {
+                        connection = requestConnection(route, null).getConnection(0, TimeUnit.MILLISECONDS);
+                        connection.open(route, new BasicHttpContext(), params);
+                        connection.markReusable();
+                        connections[index] = connection;
+                    } catch (Exception e) {
+                        if (connection != null) {
+                            releaseConnection(connection, 0, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        int opened = 0;
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ManagedClientConnection connection : connections) {
+            if (connection != null) {
+                releaseConnection(connection, prewarmKeepAlive, TimeUnit.MILLISECONDS);
+                opened++;
+            }
+        }
+        return opened;
+    }
+
+    public int getLeasedConnections() {
+        return ((MeteredPool) pool).getLeased();
+    }
+
+    public int getAvailableConnections() {
+        return ((MeteredPool) pool).getAvailable();
+    }
+
+    public int getPendingRequests() {
+        return ((MeteredPool) pool).getPending();
+    }
+
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    @Override
+    public void shutdown() {
+        ScheduledThreadPoolExecutor reaper = this.reaper;
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Reads the state of the pool under its own lock
+     */
+    private static class MeteredPool extends ConnPoolByRoute {
+        MeteredPool(ClientConnectionOperator operator, ConnPerRoute connPerRoute,
+                int maxTotalConnections, long connTTL, TimeUnit connTTLTimeUnit) {
+            super(operator, connPerRoute, maxTotalConnections, connTTL, connTTLTimeUnit);
+        }
+
+        int evict(long idleMillis) {
+            getLock().lock();
+            try {
+                int before = numConnections;
+                closeExpiredConnections();
+                closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+                return before - numConnections;
+            } finally {
+                getLock().unlock();
+            }
+        }
+
+        int getLeased() {
+            getLock().lock();
+            try {
+                return leasedConnections.size();
+            } finally {
+                getLock().unlock();
+            }
+        }
+
+        int getAvailable() {
+            getLock().lock();
+            try {
+                return freeConnections.size();
+            } finally {
+                getLock().unlock();
+            }
+        }
+
+        int getPending() {
+            getLock().lock();
+            try {
+                return waitingThreads.size();
+            } finally {
+                getLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.notnoop.c2dm.exceptions.QueueFullException;
+
+/**
+ * Holds back messages to devices that exceeded their own quota, while
+ * messages to other devices keep flowing.
+ *
+ * When Google servers respond with
+ * {@link com.notnoop.c2dm.C2DMResponse#DEVICE_QUOTA_EXCEEDED}, the device
+ * is throttled for a backoff that doubles each time the device exceeds
+ * its quota again.  Messages to a throttled device are deferred until the
+ * throttle expires, and then handed to the target service like any new
+ * message.  Deferred messages with the same collapse key are coalesced,
+ * as the device would only show the latest one anyway; the future of a
+ * coalesced message completes with the outcome of the message that
+ * replaced it.
+ *
+ * Released messages are handed to a small pool of threads through
+ * {@link SerialLanes}, so that neither the throttle thread nor the
+ * threads handling responses wait on the target service.
+ *
+ * Throttled devices are tracked in a bounded LRU map, striped to limit
+ * contention, so that millions of devices can't exhaust the heap.  When a
+ * device is evicted, its deferred messages are sent right away.  A device
+ * stays tracked for one more backoff once its throttle expires, so that
+ * its backoff keeps doubling if it exceeds its quota again soon, and is
+ * then forgotten.  Pushes only look the device up while some device is
+ * actually throttled.
+ */
+public class DeviceThrottle {
+    private static final int STRIPES = 16;
+    private static final int RELEASE_THREADS = 2;
+    private static final int RELEASE_LANES = 32;
+
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final int maxDeferredPerDevice;
+
+    private final Stripe[] stripes;
+    /** the number of devices currently throttled */
+    private final AtomicInteger throttled = new AtomicInteger();
+    /** the number of devices tracked, throttled or not */
+    private final AtomicInteger tracked = new AtomicInteger();
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final SerialLanes releaseLanes;
+    private volatile AbstractC2DMService target;
+
+    /**
+     * @param maxDevices    the maximum number of throttled devices tracked
+     * @param initialBackoff    the time in millis a device is throttled
+     *          after first exceeding its quota
+     * @param maxBackoff    the maximum time in millis a device is throttled
+     * @param maxDeferredPerDevice  the maximum number of distinct collapse
+     *          keys deferred for a single device
+     */
+    public DeviceThrottle(int maxDevices, long initialBackoff, long maxBackoff,
+            int maxDeferredPerDevice) {
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.maxDeferredPerDevice = maxDeferredPerDevice;
+
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new Stripe(Math.max(1, maxDevices / STRIPES + (i < maxDevices % STRIPES ? 1 : 0)));
+        }
+
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "c2dm-throttle");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.releaseLanes = new SerialLanes("c2dm-released", RELEASE_THREADS, RELEASE_LANES) {
+            protected void send(PushRequest request) {
+                target.push(request);
+            }
+        };
+    }
+
+    /**
+     * Sets the service deferred messages are pushed to once their device
+     * is no longer throttled.
+     */
+    public void setTarget(AbstractC2DMService target) {
+        this.target = target;
+    }
+
+    private Stripe stripeOf(String registrationId) {
+        int h = registrationId.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * Defers the request if its device is throttled.
+     *
+     * @return  true if the request was deferred or failed, false if it
+     *          should be sent now
+     */
+    public boolean defer(PushRequest request) {
+        String registrationId = request.getRegistrationId();
+        if (throttled.get() == 0 || registrationId == null) {
+            return false;
+        }
+
+        Stripe stripe = stripeOf(registrationId);
+        boolean full;
+        synchronized (stripe) {
+            Device device = stripe.get(registrationId);
+            if (device == null || System.nanoTime() - device.until >= 0) {
+                return false;
+            }
+
+            String collapseKey = request.getMessage().getCollapseKey();
+            PushRequest replaced = device.deferred.get(collapseKey);
+            full = replaced == null && device.deferred.size() >= maxDeferredPerDevice;
+            if (!full) {
+                device.deferred.put(collapseKey, PushRequest.coalesce(replaced, request));
+            }
+        }
+
+        if (full) {
+            request.fail(new QueueFullException("Too many messages deferred for a throttled device"));
+        }
+        return true;
+    }
+
+    /**
+     * Throttles the device, as Google servers reported it exceeded its
+     * quota.
+     */
+    public void throttle(final String registrationId) {
+        if (registrationId == null) {
+            return;
+        }
+
+        Stripe stripe = stripeOf(registrationId);
+        long delay;
+        List<Device> evicted;
+        synchronized (stripe) {
+            long now = System.nanoTime();
+            Device device = stripe.get(registrationId);
+            if (device == null) {
+                device = new Device();
+                stripe.put(registrationId, device);
+                tracked.incrementAndGet();
+            } else if (now - device.until < 0) {
+                // responses to messages sent before the throttle
+                return;
+            }
+            if (!device.active) {
+                device.active = true;
+                throttled.incrementAndGet();
+            }
+
+            device.backoff = device.backoff == 0 ? initialBackoff
+                    : Math.min(maxBackoff, device.backoff * 2);
+            device.until = now + TimeUnit.MILLISECONDS.toNanos(device.backoff);
+            delay = device.backoff;
+
+            evicted = stripe.evicted;
+            stripe.evicted = null;
+        }
+
+        if (evicted != null) {
+            for (Device device : evicted) {
+                release(device.deferred.values());
+            }
+        }
+
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    expire(registrationId);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Forgets the throttle of a device, once Google servers accepted a
+     * message to it.
+     */
+    public void reset(String registrationId) {
+        if (tracked.get() == 0 || registrationId == null) {
+            return;
+        }
+
+        Stripe stripe = stripeOf(registrationId);
+        List<PushRequest> deferred = null;
+        synchronized (stripe) {
+            Device device = stripe.get(registrationId);
+            if (device == null || System.nanoTime() - device.until < 0) {
+                return;
+            }
+            remove(stripe, registrationId, device);
+            deferred = new ArrayList<PushRequest>(device.deferred.values());
+        }
+        release(deferred);
+    }
+
+    /**
+     * Lifts the throttle of a device once it expires, sending its
+     * deferred messages, and forgets the device after another backoff
+     * unless it is throttled again meanwhile.
+     */
+    private void expire(final String registrationId) {
+        Stripe stripe = stripeOf(registrationId);
+        List<PushRequest> deferred;
+        long backoff;
+        synchronized (stripe) {
+            Device device = stripe.get(registrationId);
+            if (device == null || !device.active || System.nanoTime() - device.until < 0) {
+                // reset, evicted or throttled again
+                return;
+            }
+            device.active = false;
+            throttled.decrementAndGet();
+            deferred = new ArrayList<PushRequest>(device.deferred.values());
+            device.deferred.clear();
+            backoff = device.backoff;
+        }
+        release(deferred);
+
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    forget(registrationId);
+                }
+            }, backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    private void forget(String registrationId) {
+        Stripe stripe = stripeOf(registrationId);
+        synchronized (stripe) {
+            Device device = stripe.get(registrationId);
+            if (device != null && !device.active
+                    && System.nanoTime() - device.until >= TimeUnit.MILLISECONDS.toNanos(device.backoff)) {
+                remove(stripe, registrationId, device);
+            }
+        }
+    }
+
+    /** Stops tracking the device; called with the stripe locked */
+    private void remove(Stripe stripe, String registrationId, Device device) {
+        stripe.remove(registrationId);
+        forgotten(device);
+    }
+
+    private void forgotten(Device device) {
+        tracked.decrementAndGet();
+        if (device.active) {
+            device.active = false;
+            throttled.decrementAndGet();
+        }
+    }
+
+    private void release(Iterable<PushRequest> deferred) {
+        AbstractC2DMService target = this.target;
+        for (PushRequest request : deferred) {
+            if (target == null) {
+                request.fail(new IllegalStateException("No service to send deferred messages to"));
+                continue;
+            }
+            try {
+                releaseLanes.submit(request.resent());
+            } catch (RuntimeException e) {
+                request.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of devices currently throttled.
+     */
+    public int getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Returns the number of messages currently deferred.
+     */
+    public int getDeferredCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Device device : stripe.values()) {
+                    count += device.deferred.size();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops the throttle, failing any deferred messages.
+     */
+    public void stop() {
+        executor.shutdownNow();
+        for (Stripe stripe : stripes) {
+            List<PushRequest> deferred = new ArrayList<PushRequest>();
+            synchronized (stripe) {
+                for (Iterator<Device> it = stripe.values().iterator(); it.hasNext();) {
+                    Device device = it.next();
+                    deferred.addAll(device.deferred.values());
+                    it.remove();
+                    forgotten(device);
+                }
+            }
+            for (PushRequest request : deferred) {
+                request.fail(new IllegalStateException("Service was stopped before sending the message"));
+            }
+        }
+        releaseLanes.shutdown();
+    }
+
+    private static final class Device {
+        boolean active;
+        long until;
+        long backoff;
+        final Map<String, PushRequest> deferred = new LinkedHashMap<String, PushRequest>();
+    }
+
+    /** An access-ordered map of throttled devices, evicting the least recently used */
+    private final class Stripe extends LinkedHashMap<String, Device> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        transient List<Device> evicted;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Device> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+
+            forgotten(eldest.getValue());
+            if (!eldest.getValue().deferred.isEmpty()) {
+                if (evicted == null) {
+                    evicted = new ArrayList<Device>();
+                }
+                evicted.add(eldest.getValue());
+            }
+            return true;
+        }
+    }
+}
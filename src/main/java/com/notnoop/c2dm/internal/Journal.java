@@ -0,0 +1,562 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.exceptions.RuntimeIOException;
+
+/**
+ * An append-only journal of the messages waiting to be sent, so that they
+ * survive a restart of the process.
+ *
+ * The journal is a directory of fixed-size segment files, named by the
+ * offset of their first byte in the journal and mapped into memory.  Each
+ * record is its payload length, the CRC-32 of its payload, a state byte
+ * and the payload, the message encoded by {@link NotificationCodec}.
+ * Records of scheduled messages have their own state, and their payload
+ * starts with the time to send them at.
+ * Acknowledging a record flips its state byte in place, and segments are
+ * deleted once all their records are acknowledged.
+ *
+ * Appends only copy the record into the mapped segment, which the
+ * operating system persists even if the process dies.  To also survive a
+ * crash of the machine, a background thread forces the segments to disk
+ * periodically, committing all the records appended in the meantime at
+ * once, and then checkpoints the offset below which all records are
+ * acknowledged, so that recovery doesn't scan them again.  A crash of the
+ * machine loses at most the records of the last period; a record torn
+ * by the crash fails its checksum and ends the recovery of its segment.
+ */
+public class Journal {
+    private static final int HEADER = 9;
+    private static final byte PENDING = 1;
+    private static final byte ACKNOWLEDGED = 2;
+    private static final byte SCHEDULED = 3;
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final long CHECKPOINT_MAGIC = 0x63326d6a6f75726eL;
+
+    private static final ThreadLocal<Encoder> ENCODERS = new ThreadLocal<Encoder>() {
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    private final FileChannel checkpointChannel;
+    private final ScheduledThreadPoolExecutor flusher;
+
+    private final Object appendLock = new Object();
+    /** the segment appended to; written under the append lock */
+    private volatile Segment active;
+
+    private final Object syncLock = new Object();
+    private long checkpoint;
+
+    private List<Record> recovered;
+    private volatile boolean closed;
+
+    /**
+     * Opens the journal in the given directory, recovering the records
+     * not acknowledged before, and starts forcing it to disk every
+     * {@code syncInterval} millis.
+     *
+     * @param segmentSize   the size in bytes of each segment file
+     * @throws IOException if the journal couldn't be opened
+     */
+    public Journal(File directory, int segmentSize, long syncInterval) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.checkpointChannel = new RandomAccessFile(new File(directory, CHECKPOINT), "rw").getChannel();
+        this.checkpoint = readCheckpoint();
+        this.recovered = recover();
+
+        this.flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "c2dm-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sync();
+                } catch (RuntimeException e) {
+                    // retried on the next period; a task that throws is
+                    // never run again
+                }
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A message recovered from the journal
+     */
+    public static class Record {
+        private final long offset;
+        private final String registrationId;
+        private final C2DMNotification message;
+        private final long sendTime;
+
+        Record(long offset, String registrationId, C2DMNotification message, long sendTime) {
+            this.offset = offset;
+            this.registrationId = registrationId;
+            this.message = message;
+            this.sendTime = sendTime;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public String getRegistrationId() {
+            return registrationId;
+        }
+
+        public C2DMNotification getMessage() {
+            return message;
+        }
+
+        /**
+         * Returns the time in millis since the epoch to send the message
+         * at, or 0 if it is to be sent right away
+         */
+        public long getSendTime() {
+            return sendTime;
+        }
+    }
+
+    /**
+     * Appends a message to the journal.
+     *
+     * @return  the offset of the record, to acknowledge it by
+     */
+    public long append(String registrationId, C2DMNotification message) {
+        return append(registrationId, message, 0);
+    }
+
+    /**
+     * Appends a message to be sent at the given time to the journal.
+     *
+     * @param sendTime  the time in millis since the epoch to send the
+     *          message at, or 0 to send it right away
+     * @return  the offset of the record, to acknowledge it by
+     */
+    public long append(String registrationId, C2DMNotification message, long sendTime) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+
+        // encode and checksum outside the lock, then copy the record in
+        Encoder encoder = ENCODERS.get();
+        int prefix = sendTime > 0 ? 8 : 0;
+        int length = prefix + NotificationCodec.encodedLength(registrationId, message);
+        int size = HEADER + length;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Message too large for the journal: " + size + " bytes");
+        }
+        byte[] record = encoder.buffer(size);
+        if (prefix > 0) {
+            putInt(record, HEADER, (int) (sendTime >>> 32));
+            putInt(record, HEADER + 4, (int) sendTime);
+        }
+        NotificationCodec.encode(registrationId, message, record, HEADER + prefix);
+        CRC32 crc = encoder.crc;
+        crc.reset();
+        crc.update(record, HEADER, length);
+        putInt(record, 4, (int) crc.getValue());
+        record[8] = prefix > 0 ? SCHEDULED : PENDING;
+
+        synchronized (appendLock) {
+            Segment segment = active;
+            if (segment.position + size > segment.capacity) {
+                segment = roll();
+            }
+            int position = segment.position;
+            segment.live.incrementAndGet();
+            // the length goes last, as a non-zero length marks a record
+            segment.buffer.put(position + 4, record, 4, size - 4);
+            segment.buffer.putInt(position, length);
+            segment.position = position + size;
+            segment.dirty = true;
+            return segment.base + position;
+        }
+    }
+
+    /**
+     * Marks the record at the given offset as acknowledged, so that it
+     * isn't recovered again.  Acknowledgements after the journal is closed
+     * are ignored, and the records recovered on the next start.
+     */
+    public void acknowledge(long offset) {
+        if (closed) {
+            return;
+        }
+
+        // most acknowledgements are for recent records
+        Segment segment = active;
+        if (offset < segment.base) {
+            Long base = segments.floorKey(offset);
+            segment = base == null ? null : segments.get(base);
+            if (segment == null) {
+                return;
+            }
+        }
+        segment.buffer.put((int) (offset - segment.base) + 8, ACKNOWLEDGED);
+        segment.dirty = true;
+        if (segment.live.decrementAndGet() == 0 && segment.sealed) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * Returns the records recovered when opening the journal that are yet
+     * to be acknowledged.  The records are only returned once.
+     */
+    public synchronized List<Record> recovered() {
+        List<Record> records = recovered;
+        recovered = Collections.emptyList();
+        return records;
+    }
+
+    /**
+     * Returns the number of records yet to be acknowledged
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Segment segment : segments.values()) {
+            pending += segment.live.get();
+        }
+        return pending;
+    }
+
+    /**
+     * Returns the number of segment files of the journal
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Forces the appended records and acknowledgements to disk, then
+     * checkpoints the offset below which all records are acknowledged.
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    // cleared first, so that changes made while forcing
+                    // mark the segment again
+                    segment.dirty = false;
+                    try {
+                        segment.buffer.force();
+                    } catch (UncheckedIOException e) {
+                        segment.dirty = true;
+                        throw new RuntimeIOException(e.getCause());
+                    }
+                }
+            }
+
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            if (oldest == null) {
+                return;
+            }
+            long acknowledged = oldest.getValue().acknowledgedPrefix();
+            if (acknowledged != checkpoint) {
+                writeCheckpoint(acknowledged);
+                checkpoint = acknowledged;
+            }
+        }
+    }
+
+    /**
+     * Stops forcing the journal to disk, after a last sync.  Records
+     * appended but not acknowledged so far are recovered on the next
+     * start.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            sync();
+        }
+        try {
+            checkpointChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    /** Seals the active segment and starts a new one; under the append lock */
+    private Segment roll() {
+        Segment sealed = active;
+        Segment next;
+        try {
+            next = new Segment(new File(directory, nameOf(sealed.base + sealed.capacity)),
+                    sealed.base + sealed.capacity, segmentSize);
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+        segments.put(next.base, next);
+        active = next;
+
+        sealed.sealed = true;
+        if (sealed.live.get() == 0) {
+            delete(sealed);
+        }
+        return next;
+    }
+
+    private void delete(Segment segment) {
+        if (segment.deleted.compareAndSet(false, true)) {
+            segments.remove(segment.base);
+            // the mapping itself is released once garbage collected
+            segment.file.delete();
+        }
+    }
+
+    private List<Record> recover() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.valueOf(baseOf(a)).compareTo(baseOf(b));
+            }
+        });
+
+        List<Record> records = new ArrayList<Record>();
+        CRC32 crc = new CRC32();
+        for (File file : files) {
+            long base = baseOf(file);
+            if (base + file.length() <= checkpoint) {
+                file.delete();
+                continue;
+            }
+
+            Segment segment = new Segment(file, base, (int) file.length());
+            int position = checkpoint > base ? (int) (checkpoint - base) : 0;
+            MappedByteBuffer buffer = segment.buffer;
+            while (position + HEADER <= segment.capacity) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER + length > segment.capacity) {
+                    break;
+                }
+
+                ByteBuffer payload = buffer.duplicate();
+                payload.limit(position + HEADER + length).position(position + HEADER);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+
+                byte state = buffer.get(position + 8);
+                if (state == PENDING || state == SCHEDULED) {
+                    long sendTime = state == SCHEDULED ? payload.getLong() : 0;
+                    Pair<String, C2DMNotification> message = NotificationCodec.decode(payload);
+                    records.add(new Record(base + position, message.getKey(), message.getValue(), sendTime));
+                    segment.live.incrementAndGet();
+                }
+                position += HEADER + length;
+            }
+            segment.position = position;
+            segment.acknowledged = checkpoint > base ? (int) (checkpoint - base) : 0;
+            segments.put(base, segment);
+        }
+
+        // seal all but the last segment, which appends continue in
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        for (Segment segment : segments.values()) {
+            if (segment != last.getValue()) {
+                segment.sealed = true;
+                if (segment.live.get() == 0) {
+                    delete(segment);
+                }
+            }
+        }
+        if (last != null) {
+            active = last.getValue();
+        } else {
+            // offsets keep growing past the checkpoint
+            active = new Segment(new File(directory, nameOf(checkpoint)), checkpoint, segmentSize);
+            segments.put(active.base, active);
+        }
+        return records;
+    }
+
+    private long readCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        while (buffer.hasRemaining() && checkpointChannel.read(buffer, buffer.position()) > 0);
+        if (buffer.hasRemaining()) {
+            return 0;
+        }
+
+        long offset = buffer.getLong(0);
+        return (offset ^ CHECKPOINT_MAGIC) == buffer.getLong(8) ? offset : 0;
+    }
+
+    private void writeCheckpoint(long offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(offset).putLong(offset ^ CHECKPOINT_MAGIC).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                checkpointChannel.write(buffer, buffer.position());
+            }
+            checkpointChannel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private static String nameOf(long base) {
+        return String.format("%020d%s", base, SEGMENT_SUFFIX);
+    }
+
+    private static long baseOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static class Segment {
+        final File file;
+        final long base;
+        final int capacity;
+        final MappedByteBuffer buffer;
+
+        /** the end of the last record; written under the append lock */
+        volatile int position;
+        /** the end of the acknowledged records at the start of the segment */
+        int acknowledged;
+        final AtomicInteger live = new AtomicInteger();
+        volatile boolean sealed;
+        volatile boolean dirty;
+        final AtomicBoolean deleted = new AtomicBoolean();
+
+        Segment(File file, long base, int capacity) throws IOException {
+            this.file = file;
+            this.base = base;
+            this.capacity = capacity;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < capacity) {
+                    raf.setLength(capacity);
+                }
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Advances past the acknowledged records at the start of the
+         * segment, and returns the journal offset following them.
+         */
+        long acknowledgedPrefix() {
+            int end = position;
+            while (acknowledged + HEADER <= end) {
+                int length = buffer.getInt(acknowledged);
+                if (length <= 0 || buffer.get(acknowledged + 8) != ACKNOWLEDGED) {
+                    break;
+                }
+                acknowledged += HEADER + length;
+            }
+            return base + acknowledged;
+        }
+    }
+
+    /**
+     * The buffers a thread encodes records with
+     */
+    private static class Encoder {
+        final CRC32 crc = new CRC32();
+        byte[] bytes = new byte[512];
+
+        byte[] buffer(int size) {
+            if (bytes.length < size) {
+                bytes = new byte[Math.max(size, bytes.length * 2)];
+            }
+            return bytes;
+        }
+    }
+}
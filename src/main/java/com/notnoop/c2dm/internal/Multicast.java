@@ -0,0 +1,249 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResponse;
+import com.notnoop.c2dm.C2DMResult;
+import com.notnoop.c2dm.MulticastListener;
+import com.notnoop.c2dm.MulticastResult;
+
+/**
+ * Sends a message to many devices through a service, and aggregates the
+ * outcomes.
+ *
+ * Messages are pushed through {@link AbstractC2DMService#pushAsync}, so
+ * they spread over the connections of pooled, queued and non-blocking
+ * services alike.  A window bounds the messages awaiting responses, so
+ * that huge broadcasts don't pile up in the executor or queue of the
+ * service.
+ */
+public class Multicast {
+    private final AbstractC2DMService service;
+    private final C2DMNotification message;
+    private final int chunkSize;
+    private final MulticastListener listener;
+    private final Semaphore window;
+
+    private final CompletableFuture<MulticastResult> result =
+        new CompletableFuture<MulticastResult>();
+
+    // guarded by this
+    private final Tally total = new Tally();
+    private final Tally chunk = new Tally();
+    private int completed;
+    private int dispatched = -1;
+    private final Queue<MulticastResult> reports = new ArrayDeque<MulticastResult>();
+    private boolean delivering;
+    private MulticastResult finished;
+
+    /**
+     * @param chunkSize the number of outcomes reported to the listener at
+     *          once
+     * @param listener  the listener notified of progress, or {@code null}
+     * @param window    the maximum number of messages awaiting responses
+     */
+    public Multicast(AbstractC2DMService service, C2DMNotification message,
+            int chunkSize, MulticastListener listener, int window) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.service = service;
+        this.message = message;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+        this.window = new Semaphore(window);
+    }
+
+    /**
+     * Pushes the message to every registration id, returning once all
+     * were handed to the service.
+     */
+    public CompletableFuture<MulticastResult> send(Iterable<String> registrationIds) {
+        int count = 0;
+        try {
+            for (final String registrationId : registrationIds) {
+                window.acquire();
+                count++;
+                service.pushAsync(registrationId, message).whenComplete(
+                        new BiConsumer<C2DMResult, Throwable>() {
+                    public void accept(C2DMResult outcome, Throwable failure) {
+                        window.release();
+                        record(registrationId, outcome);
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        } catch (RuntimeException e) {
+            // failing iterator
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        synchronized (this) {
+            dispatched = count;
+            finishIfDone();
+        }
+        deliver();
+        return result;
+    }
+
+    private void record(String registrationId, C2DMResult outcome) {
+        synchronized (this) {
+            total.add(registrationId, outcome);
+            completed++;
+
+            if (listener != null) {
+                chunk.add(registrationId, outcome);
+                if (chunk.count == chunkSize) {
+                    report();
+                }
+            }
+            finishIfDone();
+        }
+        deliver();
+    }
+
+    private void finishIfDone() {
+        if (completed != dispatched) {
+            return;
+        }
+        if (listener != null && chunk.count > 0) {
+            report();
+        }
+        finished = total.toResult();
+    }
+
+    private void report() {
+        reports.add(chunk.toResult());
+        chunk.clear();
+    }
+
+    /**
+     * Hands the pending chunks to the listener, and then completes the
+     * result once all were reported.
+     *
+     * The listener is called outside the lock, by one thread at a time
+     * so that chunks are still reported in turn; the others leave their
+     * chunks to it.
+     */
+    private void deliver() {
+        synchronized (this) {
+            if (delivering) {
+                return;
+            }
+            delivering = true;
+        }
+
+        for (;;) {
+            MulticastResult report;
+            MulticastResult done = null;
+            synchronized (this) {
+                report = reports.poll();
+                if (report == null) {
+                    delivering = false;
+                    done = finished;
+                    finished = null;
+                }
+            }
+
+            if (report == null) {
+                if (done != null) {
+                    result.complete(done);
+                }
+                return;
+            }
+            try {
+                listener.chunkCompleted(report);
+            } catch (RuntimeException e) {
+                // a failing listener must not lose the outcome of the rest
+            }
+        }
+    }
+
+    /** Mutable counters of outcomes */
+    private static final class Tally {
+        int count;
+        int successes;
+        int errors;
+        final Map<C2DMResponse, Integer> failures = new EnumMap<C2DMResponse, Integer>(C2DMResponse.class);
+        final List<String> unregistered = new ArrayList<String>();
+
+        /**
+         * @param outcome   the response, or {@code null} if the message
+         *          couldn't be sent
+         */
+        void add(String registrationId, C2DMResult outcome) {
+            count++;
+            if (outcome == null) {
+                errors++;
+                return;
+            }
+
+            C2DMResponse response = outcome.getResponse();
+            if (response == C2DMResponse.SUCCESSFUL) {
+                successes++;
+                return;
+            }
+
+            Integer failed = failures.get(response);
+            failures.put(response, failed == null ? 1 : failed + 1);
+            if (response == C2DMResponse.INVALID_REGISTRATION
+                    || response == C2DMResponse.NOT_REGISTERED) {
+                unregistered.add(registrationId);
+            }
+        }
+
+        void clear() {
+            count = successes = errors = 0;
+            failures.clear();
+            unregistered.clear();
+        }
+
+        MulticastResult toResult() {
+            return new MulticastResult(successes, failures, errors,
+                    new ArrayList<String>(unregistered));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.Priority;
+
+/**
+ * Encodes a message to a device as compact binary, to be stored outside
+ * the heap objects of the message.
+ *
+ * The encoding is a flags byte, holding the delay while idle flag and any
+ * priority other than the default, followed by the registration id, the
+ * collapse key, and the count and name/value pairs of the data, with each
+ * string encoded as its UTF-8 length in an unsigned short and its UTF-8
+ * bytes.  A null string has the length {@code 0xFFFF}.
+ */
+public final class NotificationCodec {
+    private NotificationCodec() { throw new AssertionError("Uninstantiable class"); }
+
+    private static final int DELAY_WHILE_IDLE = 1;
+    private static final int HIGH_PRIORITY = 2;
+    private static final int LOW_PRIORITY = 4;
+    private static final int NULL_STRING = 0xFFFF;
+
+    /**
+     * Returns the number of bytes the message encodes to
+     */
+    public static int encodedLength(String registrationId, C2DMNotification message) {
+        int length = 1 + lengthOf(registrationId) + lengthOf(message.getCollapseKey()) + 2;
+        for (Entry<String, String> entry : message.getData()) {
+            length += lengthOf(entry.getKey()) + lengthOf(entry.getValue());
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the message into {@code out}, which must have room for
+     * {@link #encodedLength} bytes from {@code offset}.
+     *
+     * @return  the offset following the encoded message
+     */
+    public static int encode(String registrationId, C2DMNotification message, byte[] out, int offset) {
+        int flags = message.isDelayWhileIdle() ? DELAY_WHILE_IDLE : 0;
+        if (message.getPriority() == Priority.HIGH) {
+            flags |= HIGH_PRIORITY;
+        } else if (message.getPriority() == Priority.LOW) {
+            flags |= LOW_PRIORITY;
+        }
+        out[offset++] = (byte) flags;
+        offset = encode(registrationId, out, offset);
+        offset = encode(message.getCollapseKey(), out, offset);
+
+        int countOffset = offset;
+        offset += 2;
+        int count = 0;
+        for (Entry<String, String> entry : message.getData()) {
+            offset = encode(entry.getKey(), out, offset);
+            offset = encode(entry.getValue(), out, offset);
+            count++;
+        }
+        out[countOffset] = (byte) (count >>> 8);
+        out[countOffset + 1] = (byte) count;
+        return offset;
+    }
+
+    /**
+     * Encodes a message on its own, without a registration id
+     */
+    public static byte[] encode(C2DMNotification message) {
+        byte[] out = new byte[encodedLength(null, message)];
+        encode(null, message, out, 0);
+        return out;
+    }
+
+    /**
+     * Decodes a message {@link #encode(C2DMNotification) encoded on its own}
+     */
+    public static C2DMNotification decode(byte[] encoded) {
+        return decode(ByteBuffer.wrap(encoded)).getValue();
+    }
+
+    /**
+     * Decodes a message from the position of {@code in}, advancing it past
+     * the message.
+     *
+     * @return  the registration id and the message
+     */
+    public static Pair<String, C2DMNotification> decode(ByteBuffer in) {
+        int flags = in.get();
+        boolean delayWhileIdle = (flags & DELAY_WHILE_IDLE) != 0;
+        Priority priority = (flags & HIGH_PRIORITY) != 0 ? Priority.HIGH
+                : (flags & LOW_PRIORITY) != 0 ? Priority.LOW : Priority.NORMAL;
+        String registrationId = decodeString(in);
+        String collapseKey = decodeString(in);
+
+        int count = in.getShort() & 0xFFFF;
+        List<Pair<String, String>> data = new ArrayList<Pair<String, String>>(count);
+        for (int i = 0; i < count; ++i) {
+            String name = decodeString(in);
+            data.add(Pair.of(name, decodeString(in)));
+        }
+        return Pair.of(registrationId, new C2DMNotification(collapseKey, delayWhileIdle, data, priority));
+    }
+
+    private static int lengthOf(String s) {
+        if (s == null) {
+            return 2;
+        }
+
+        int length = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        if (length >= NULL_STRING) {
+            throw new IllegalArgumentException("String too long to encode: " + length + " bytes");
+        }
+        return 2 + length;
+    }
+
+    private static int encode(String s, byte[] out, int offset) {
+        if (s == null) {
+            out[offset] = (byte) 0xFF;
+            out[offset + 1] = (byte) 0xFF;
+            return offset + 2;
+        }
+
+        int start = offset;
+        offset += 2;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                out[offset++] = (byte) (0xC0 | (c >> 6));
+                out[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[offset++] = (byte) (0xF0 | (cp >> 18));
+                out[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[offset++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                // lone surrogates are kept as three bytes, as counted by lengthOf
+                out[offset++] = (byte) (0xE0 | (c >> 12));
+                out[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        int length = offset - start - 2;
+        out[start] = (byte) (length >>> 8);
+        out[start + 1] = (byte) length;
+        return offset;
+    }
+
+    private static String decodeString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NULL_STRING) {
+            return null;
+        }
+
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(in.position(), bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+
+import com.notnoop.c2dm.C2DMNotification;
+
+/**
+ * The form-encoded body of a message, encoded as it is written out.
+ *
+ * Unlike {@code UrlEncodedFormEntity}, no name-value pairs, intermediate
+ * strings or body buffer are created: the registration id is
+ * percent-encoded byte by byte straight into the output stream of the
+ * connection, which is buffered already, followed by the parameters of the
+ * notification, which are encoded once per notification and then copied
+ * as is.  The content length is computed by a first encoding pass that
+ * only counts the bytes.
+ *
+ * The encoding matches {@link java.net.URLEncoder} with UTF-8, as used by
+ * {@code UrlEncodedFormEntity}.
+ */
+public class NotificationEntity extends AbstractHttpEntity {
+    private static final Header CONTENT_TYPE = new BasicHeader(HTTP.CONTENT_TYPE,
+            "application/x-www-form-urlencoded; charset=UTF-8");
+
+    private static final byte[] REGISTRATION_ID = ascii("registration_id=");
+    private static final byte[] COLLAPSE_KEY = ascii("&collapse_key=");
+    private static final byte[] DELAY_WHILE_IDLE = ascii("&delay_while_idle=1");
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+    private static ParameterCache parameterCache;
+
+    private final String registrationId;
+    private final C2DMNotification notification;
+    private long contentLength = -1;
+
+    public NotificationEntity(String registrationId, C2DMNotification notification) {
+        this.registrationId = registrationId;
+        this.notification = notification;
+        this.contentType = CONTENT_TYPE;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    public long getContentLength() {
+        if (contentLength < 0) {
+            try {
+                contentLength = encode(null);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return contentLength;
+    }
+
+    /**
+     * Returns the encoded body as a stream.  The blocking clients use
+     * {@link #writeTo(OutputStream)} instead, so this allocates the body
+     * only for the non-blocking client.
+     */
+    public InputStream getContent() throws IOException {
+        ByteArrayBuilder body = new ByteArrayBuilder((int) getContentLength());
+        encode(body);
+        return new ByteArrayInputStream(body.bytes);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        encode(out);
+        out.flush();
+    }
+
+    /**
+     * Encodes the body into the stream, or just counts its bytes if the
+     * stream is {@code null}.
+     *
+     * @return  the number of bytes of the body
+     */
+    private long encode(OutputStream out) throws IOException {
+        long n = write(out, REGISTRATION_ID);
+        n += write(out, registrationId);
+        n += write(out, encodedParameters(notification));
+        return n;
+    }
+
+    /**
+     * Reads and writes the encoded parameters cached on a notification,
+     * which keeps them off its public API.
+     */
+    public interface ParameterCache {
+        byte[] get(C2DMNotification notification);
+
+        void set(C2DMNotification notification, byte[] parameters);
+    }
+
+    /**
+     * Installs the cache of encoded parameters; called once, by
+     * {@link C2DMNotification}.
+     */
+    public static void setParameterCache(ParameterCache cache) {
+        if (parameterCache != null) {
+            throw new IllegalStateException("Parameter cache already set");
+        }
+        parameterCache = cache;
+    }
+
+    /**
+     * Returns the encoded parameters of the notification, i.e. the body of
+     * a message following the registration id.
+     *
+     * The parameters are encoded on first use only, so that broadcasting
+     * the notification to many devices doesn't encode them again for every
+     * device.  The returned array is shared, and must not be modified.
+     */
+    static byte[] encodedParameters(C2DMNotification notification) {
+        // set when the class of the notification was initialized
+        ParameterCache cache = parameterCache;
+        byte[] encoded = cache.get(notification);
+        if (encoded == null) {
+            // racing threads compute the same bytes
+            encoded = encodeParameters(notification);
+            cache.set(notification, encoded);
+        }
+        return encoded;
+    }
+
+    private static byte[] encodeParameters(C2DMNotification notification) {
+        try {
+            ByteArrayBuilder out = new ByteArrayBuilder((int) encodeParameters(notification, null));
+            encodeParameters(notification, out);
+            return out.bytes;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static long encodeParameters(C2DMNotification notification, OutputStream out)
+            throws IOException {
+        long n = write(out, COLLAPSE_KEY);
+        n += write(out, notification.getCollapseKey());
+
+        if (notification.isDelayWhileIdle()) {
+            n += write(out, DELAY_WHILE_IDLE);
+        }
+
+        for (Map.Entry<String, String> data : notification.getData()) {
+            n += write(out, '&');
+            n += write(out, data.getKey());
+            n += write(out, '=');
+            n += write(out, data.getValue());
+        }
+        return n;
+    }
+
+    private static int write(OutputStream out, byte[] bytes) throws IOException {
+        if (out != null) {
+            out.write(bytes);
+        }
+        return bytes.length;
+    }
+
+    private static int write(OutputStream out, int b) throws IOException {
+        if (out != null) {
+            out.write(b);
+        }
+        return 1;
+    }
+
+    /**
+     * Writes the percent-encoded UTF-8 bytes of the value, with spaces as
+     * {@code '+'}; {@code null} is written as the empty string.
+     */
+    private static int write(OutputStream out, String value) throws IOException {
+        if (value == null) {
+            return 0;
+        }
+
+        int n = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (isSafe(c)) {
+                n += write(out, c);
+            } else if (c == ' ') {
+                n += write(out, '+');
+            } else if (c < 0x80) {
+                n += writeEscaped(out, c);
+            } else if (c < 0x800) {
+                n += writeEscaped(out, 0xC0 | (c >> 6));
+                n += writeEscaped(out, 0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                n += writeEscaped(out, 0xE0 | (c >> 12));
+                n += writeEscaped(out, 0x80 | ((c >> 6) & 0x3F));
+                n += writeEscaped(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                n += writeEscaped(out, 0xF0 | (cp >> 18));
+                n += writeEscaped(out, 0x80 | ((cp >> 12) & 0x3F));
+                n += writeEscaped(out, 0x80 | ((cp >> 6) & 0x3F));
+                n += writeEscaped(out, 0x80 | (cp & 0x3F));
+            } else {
+                // unpaired surrogate, replaced like the UTF-8 encoder does
+                n += writeEscaped(out, '?');
+            }
+        }
+        return n;
+    }
+
+    private static int writeEscaped(OutputStream out, int b) throws IOException {
+        if (out != null) {
+            out.write('%');
+            out.write(HEX[(b >> 4) & 0xF]);
+            out.write(HEX[b & 0xF]);
+        }
+        return 3;
+    }
+
+    private static boolean isSafe(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || c == '-' || c == '_' || c == '.' || c == '*';
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    /** An output stream into an array of a known size */
+    private static final class ByteArrayBuilder extends OutputStream {
+        final byte[] bytes;
+        int size;
+
+        ByteArrayBuilder(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        @Override
+        public void write(int b) {
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.notnoop.c2dm.Priority;
+
+/**
+ * A lane of a queued service, holding a FIFO queue per {@link Priority}
+ * that a single drain thread takes messages from.
+ *
+ * The drain thread picks among the non-empty queues by smooth weighted
+ * round robin: each time, every non-empty queue earns its weight in
+ * credits, and the queue with the most credits is served and pays back
+ * the total earned.  A queue thus gets its weighted share of the drain
+ * thread while others have a backlog, and a message reaching the head of
+ * a higher priority queue waits for at most a few messages of a lower
+ * priority.  Queues that run empty lose their credits, so an idle class
+ * doesn't get to burst once messages arrive.
+ *
+ * A semaphore counts the waiting messages, so that the drain thread waits
+ * on all queues at once.
+ */
+public class PriorityLane {
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final BlockingQueue<PushRequest>[] queues;
+    private final Semaphore available = new Semaphore(0);
+
+    private volatile int[] weights;
+    /** accessed by the drain thread only */
+    private final int[] credits;
+
+    private final AtomicLong[] taken;
+    private final AtomicLong[] waitNanos;
+    private final AtomicLong[] maxWaitNanos;
+
+    /**
+     * @param capacity  the capacity of the queue of each priority
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PriorityLane(int capacity) {
+        int classes = PRIORITIES.length;
+        this.queues = new BlockingQueue[classes];
+        this.credits = new int[classes];
+        this.taken = new AtomicLong[classes];
+        this.waitNanos = new AtomicLong[classes];
+        this.maxWaitNanos = new AtomicLong[classes];
+        for (int i = 0; i < classes; ++i) {
+            queues[i] = new LinkedBlockingQueue<PushRequest>(capacity);
+            taken[i] = new AtomicLong();
+            waitNanos[i] = new AtomicLong();
+            maxWaitNanos[i] = new AtomicLong();
+        }
+        this.weights = new int[classes];
+        this.weights[Priority.NORMAL.ordinal()] = 1;
+    }
+
+    /**
+     * Sets the share of the drain thread each priority gets while others
+     * have a backlog, indexed by priority ordinal.
+     */
+    public void setWeights(int[] weights) {
+        this.weights = weights.clone();
+    }
+
+    /**
+     * Returns the queue of the priority.  Messages added to it must be
+     * reported through {@link #added}, and messages removed through
+     * {@link #removed}.
+     */
+    public BlockingQueue<PushRequest> queueOf(Priority priority) {
+        return queues[priority.ordinal()];
+    }
+
+    public void added() {
+        available.release();
+    }
+
+    public void removed() {
+        // the drain thread may own the permit already, and then skips it
+        available.tryAcquire();
+    }
+
+    /**
+     * Waits for a message, and returns it
+     */
+    public PushRequest take() throws InterruptedException {
+        for (;;) {
+            available.acquire();
+            PushRequest request = next();
+            if (request != null) {
+                return request;
+            }
+        }
+    }
+
+    /**
+     * Returns a waiting message, or {@code null} if none is waiting
+     */
+    public PushRequest poll() {
+        while (available.tryAcquire()) {
+            PushRequest request = next();
+            if (request != null) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits up to {@code timeout} nanos for a message, and returns it or
+     * {@code null} if none arrived
+     */
+    public PushRequest poll(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout;
+        for (;;) {
+            if (!available.tryAcquire(timeout, TimeUnit.NANOSECONDS)) {
+                return null;
+            }
+            PushRequest request = next();
+            if (request != null) {
+                return request;
+            }
+            timeout = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Takes the message to send next, once a permit was acquired; returns
+     * {@code null} if the permit was left by a removed message.
+     */
+    private PushRequest next() {
+        int[] weights = this.weights;
+        for (;;) {
+            int total = 0, best = -1;
+            for (int i = 0; i < queues.length; ++i) {
+                if (queues[i].isEmpty()) {
+                    credits[i] = 0;
+                    continue;
+                }
+                credits[i] += weights[i];
+                total += weights[i];
+                if (best < 0 || credits[i] > credits[best]) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+
+            credits[best] -= total;
+            PushRequest request = queues[best].poll();
+            if (request != null) {
+                recordWait(best, System.nanoTime() - request.getQueuedAt());
+                return request;
+            }
+            // removed by an overflowing producer meanwhile
+        }
+    }
+
+    private void recordWait(int priority, long nanos) {
+        taken[priority].incrementAndGet();
+        waitNanos[priority].addAndGet(nanos);
+        AtomicLong max = maxWaitNanos[priority];
+        for (long current = max.get(); nanos > current; current = max.get()) {
+            if (max.compareAndSet(current, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Removes all the waiting messages into {@code out}
+     */
+    public void drainTo(Collection<PushRequest> out) {
+        for (BlockingQueue<PushRequest> queue : queues) {
+            available.tryAcquire(queue.drainTo(out));
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (BlockingQueue<PushRequest> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public int size(Priority priority) {
+        return queues[priority.ordinal()].size();
+    }
+
+    /**
+     * Returns the number of messages of the priority taken so far
+     */
+    public long getTakenCount(Priority priority) {
+        return taken[priority.ordinal()].get();
+    }
+
+    /**
+     * Returns the total time in nanos messages of the priority waited
+     */
+    public long getWaitNanos(Priority priority) {
+        return waitNanos[priority.ordinal()].get();
+    }
+
+    public long getMaxWaitNanos(Priority priority) {
+        return maxWaitNanos[priority.ordinal()].get();
+    }
+}
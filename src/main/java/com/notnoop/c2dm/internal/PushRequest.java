@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.apache.http.Header;
+
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResponse;
+import com.notnoop.c2dm.C2DMResult;
+
+/**
+ * Represents a single message on its way to the Google C2DM servers.
+ *
+ * The HTTP request is only built when the message is sent, so that
+ * waiting messages don't hold on to it, and are sent with the
+ * authentication token current at the time.
+ */
+public class PushRequest {
+    private final String registrationId;
+    private final C2DMNotification message;
+    private final byte[] encodedMessage;
+    private final CompletableFuture<C2DMResult> future;
+    private final int attempt;
+    private final boolean replayed;
+    private final boolean resent;
+
+    /** the Authorization header the request was last sent with */
+    private volatile Header authorization;
+    /** the nanoTime the request was queued at, published by the queue */
+    private long queuedAt;
+
+    public PushRequest(String registrationId, C2DMNotification message) {
+        this(registrationId, message, null);
+    }
+
+    public PushRequest(String registrationId, C2DMNotification message,
+            CompletableFuture<C2DMResult> future) {
+        this(registrationId, message, future, 1);
+    }
+
+    public PushRequest(String registrationId, C2DMNotification message,
+            CompletableFuture<C2DMResult> future, int attempt) {
+        this(registrationId, message, null, future, attempt, false, false);
+    }
+
+    private PushRequest(String registrationId, C2DMNotification message, byte[] encodedMessage,
+            CompletableFuture<C2DMResult> future, int attempt, boolean replayed, boolean resent) {
+        this.registrationId = registrationId;
+        this.message = message;
+        this.encodedMessage = encodedMessage;
+        this.replayed = replayed;
+        this.resent = resent;
+        this.future = future;
+        this.attempt = attempt;
+    }
+
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+    /**
+     * Returns the message, decoded anew on every call if this request is
+     * {@link #compact(byte[]) compact}
+     */
+    public C2DMNotification getMessage() {
+        return message != null ? message : NotificationCodec.decode(encodedMessage);
+    }
+
+    /**
+     * Returns a copy of this request holding its message in the compact
+     * form encoded by {@link NotificationCodec#encode(C2DMNotification)}
+     * rather than as objects, for messages waiting long enough for their
+     * footprint to matter.
+     */
+    public PushRequest compact(byte[] encodedMessage) {
+        return new PushRequest(registrationId, null, encodedMessage, future, attempt, replayed, resent);
+    }
+
+    /**
+     * Returns this request with its message decoded, if it was compact
+     */
+    public PushRequest expand() {
+        if (message != null) {
+            return this;
+        }
+        return new PushRequest(registrationId, NotificationCodec.decode(encodedMessage),
+                null, future, attempt, replayed, resent);
+    }
+
+    /**
+     * Returns a copy of this request to send again after Google servers
+     * rejected its authentication token, without counting as an attempt
+     */
+    public PushRequest replayed() {
+        return new PushRequest(registrationId, message, encodedMessage, future, attempt, true, resent);
+    }
+
+    /**
+     * Returns a copy of this request handed to the service again after it
+     * was held back, e.g. while its device was throttled
+     */
+    public PushRequest resent() {
+        return new PushRequest(registrationId, message, encodedMessage, future, attempt, replayed, true);
+    }
+
+    /**
+     * Returns whether this message went through the service before, being
+     * retried, replayed or held back.  Any message waiting with the same
+     * collapse key was then pushed after it.
+     */
+    public boolean isResent() {
+        return resent || replayed || attempt > 1;
+    }
+
+    /**
+     * Returns a copy of this request whose outcome completes the given
+     * future
+     */
+    public PushRequest withFuture(CompletableFuture<C2DMResult> future) {
+        return new PushRequest(registrationId, message, encodedMessage, future, attempt, replayed, resent);
+    }
+
+    /**
+     * Returns whether this request was sent again after Google servers
+     * rejected its authentication token
+     */
+    public boolean isReplayed() {
+        return replayed;
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    public void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    public Header getAuthorization() {
+        return authorization;
+    }
+
+    public void setAuthorization(Header authorization) {
+        this.authorization = authorization;
+    }
+
+    /**
+     * Returns the number of times this message has been attempted,
+     * including this request
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Returns the future awaiting the outcome of this request, or
+     * {@code null} if nobody is awaiting it
+     */
+    public CompletableFuture<C2DMResult> getFuture() {
+        return future;
+    }
+
+    /**
+     * Completes the awaiting future, if any, with the provided response
+     */
+    public void complete(C2DMResponse response, String messageId) {
+        if (future != null) {
+            future.complete(new C2DMResult(registrationId, message, response, messageId));
+        }
+    }
+
+    /**
+     * Completes the awaiting future, if any, with the provided failure
+     *
+     * @return  true if a future was awaiting the outcome
+     */
+    public boolean fail(Throwable cause) {
+        if (future == null) {
+            return false;
+        }
+        future.completeExceptionally(cause);
+        return true;
+    }
+
+    /**
+     * Returns the request to send in place of both {@code older} and
+     * {@code newer}, as they would collapse on the device anyway.  The
+     * future of the older request, if any, completes with the outcome of
+     * the returned one.
+     */
+    public static PushRequest coalesce(PushRequest older, PushRequest newer) {
+        if (older == null || older.getFuture() == null) {
+            return newer;
+        }
+
+        final CompletableFuture<C2DMResult> olderFuture = older.getFuture();
+        if (newer.getFuture() == null) {
+            return newer.withFuture(olderFuture);
+        }
+
+        newer.getFuture().whenComplete(new BiConsumer<C2DMResult, Throwable>() {
+            public void accept(C2DMResult result, Throwable failure) {
+                if (failure == null) {
+                    olderFuture.complete(result);
+                } else {
+                    olderFuture.completeExceptionally(failure);
+                }
+            }
+        });
+        return newer;
+    }
+}
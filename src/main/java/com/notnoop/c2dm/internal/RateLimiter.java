@@ -0,0 +1,258 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.notnoop.c2dm.C2DMResponse;
+
+/**
+ * Smooths the messages sent to a target rate, globally and optionally per
+ * collapse key.
+ *
+ * Each limit is a token bucket, implemented as a generic cell rate
+ * algorithm: a single atomic timestamp records when the next message is
+ * due, and senders reserve their slot with a compare-and-set before
+ * sleeping until it comes.  No lock is held while waiting, so the limiter
+ * adds a single contended CAS per message.
+ *
+ * When Google servers respond with {@link C2DMResponse#QUOTA_EXCEEDED},
+ * the global rate is halved, at most once per second, down to 1/64 of the
+ * target.  It then recovers, halving the shortfall every second.
+ *
+ * Collapse keys come and go, so buckets that are idle and full again,
+ * and thus no different from new ones, are evicted whenever the number
+ * of keys doubles since the last sweep.
+ */
+public class RateLimiter {
+    private static final long PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_SHRINK = 64;
+    private static final int MIN_SWEEP = 1024;
+    private static final long RETIRED = Long.MIN_VALUE;
+
+    private final Bucket global;
+
+    private final double keyRate;
+    private final int keyBurst;
+    private final ConcurrentMap<String, Bucket> keys;
+    private final AtomicInteger sweepAt = new AtomicInteger(MIN_SWEEP);
+
+    /**
+     * @param rate  the target number of messages per second, or
+     *          non-positive for no global limit
+     * @param burst the number of messages that may be sent at once after
+     *          an idle period
+     * @param keyRate   the target number of messages per second for each
+     *          collapse key, or non-positive for no limit per key
+     * @param keyBurst  the burst allowed for each collapse key
+     */
+    public RateLimiter(double rate, int burst, double keyRate, int keyBurst) {
+        this.global = rate > 0 ? new Bucket(rate, burst) : null;
+        this.keyRate = keyRate;
+        this.keyBurst = keyBurst;
+        this.keys = keyRate > 0 ? new ConcurrentHashMap<String, Bucket>() : null;
+    }
+
+    /**
+     * Waits until the message of the request may be sent.
+     *
+     * If interrupted, returns right away with the interrupt status set,
+     * so that stopping services don't hang on the limiter.
+     */
+    public void acquire(PushRequest request) {
+        long wait = 0;
+        if (global != null) {
+            wait = global.reserve();
+        }
+
+        String collapseKey = request.getMessage().getCollapseKey();
+        if (keys != null && collapseKey != null) {
+            wait = Math.max(wait, reserve(collapseKey));
+        }
+
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long reserve(String collapseKey) {
+        for (;;) {
+            Bucket bucket = keys.get(collapseKey);
+            if (bucket == null) {
+                Bucket created = new Bucket(keyRate, keyBurst);
+                bucket = keys.putIfAbsent(collapseKey, created);
+                if (bucket == null) {
+                    bucket = created;
+                    if (keys.size() >= sweepAt.get()) {
+                        sweep();
+                    }
+                }
+            }
+
+            long wait = bucket.reserve();
+            if (wait != RETIRED) {
+                return wait;
+            }
+            // evicted under us; its replacement starts full just the same
+            keys.remove(collapseKey, bucket);
+        }
+    }
+
+    /** Evicts the buckets of idle collapse keys */
+    private void sweep() {
+        int threshold = sweepAt.get();
+        if (threshold == Integer.MAX_VALUE
+                || !sweepAt.compareAndSet(threshold, Integer.MAX_VALUE)) {
+            // another thread is sweeping
+            return;
+        }
+
+        try {
+            for (Map.Entry<String, Bucket> entry : keys.entrySet()) {
+                if (entry.getValue().retire()) {
+                    keys.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            sweepAt.set(Math.max(MIN_SWEEP, keys.size() * 2));
+        }
+    }
+
+    /** Returns the number of collapse keys tracked */
+    int keyCount() {
+        return keys == null ? 0 : keys.size();
+    }
+
+    /**
+     * Adapts the global rate to the response of Google servers.
+     */
+    public void record(C2DMResponse response) {
+        if (global != null && response == C2DMResponse.QUOTA_EXCEEDED) {
+            global.shrink();
+        }
+    }
+
+    /**
+     * Returns the current global rate in messages per second, or
+     * {@link Double#POSITIVE_INFINITY} if there is no global limit.
+     */
+    public double getRate() {
+        if (global == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (double) PERIOD_NANOS / global.interval(System.nanoTime());
+    }
+
+    private static final class Bucket {
+        private final long targetInterval;
+        private final long tolerance;
+
+        /** the time the next message is due, minus the burst tolerance */
+        private final AtomicLong due;
+
+        private volatile long shrunkInterval;
+        private final AtomicLong shrunkAt = new AtomicLong(System.nanoTime() - PERIOD_NANOS);
+
+        Bucket(double rate, int burst) {
+            this.targetInterval = Math.max(1, (long) (PERIOD_NANOS / rate));
+            this.tolerance = targetInterval * Math.max(0, burst - 1);
+            this.shrunkInterval = targetInterval;
+            // start with a full bucket
+            this.due = new AtomicLong(System.nanoTime() - tolerance);
+        }
+
+        /**
+         * Reserves the next slot, and returns the time in nanos until it
+         * comes, or {@link #RETIRED} if the bucket was evicted.
+         */
+        long reserve() {
+            for (;;) {
+                long now = System.nanoTime();
+                long due = this.due.get();
+                if (due == RETIRED) {
+                    return RETIRED;
+                }
+                long interval = interval(now);
+
+                long start = Math.max(due, now - tolerance);
+                if (this.due.compareAndSet(due, start + interval)) {
+                    return due - now;
+                }
+            }
+        }
+
+        /**
+         * Retires the bucket if it is full, so that no slot is reserved in
+         * it once evicted.
+         */
+        boolean retire() {
+            long due = this.due.get();
+            return due != RETIRED && due <= System.nanoTime() - tolerance
+                && this.due.compareAndSet(due, RETIRED);
+        }
+
+        long interval(long now) {
+            long shrunk = shrunkInterval;
+            if (shrunk == targetInterval) {
+                return targetInterval;
+            }
+
+            long periods = (now - shrunkAt.get()) / PERIOD_NANOS;
+            if (periods >= 62) {
+                return targetInterval;
+            }
+            return targetInterval + ((shrunk - targetInterval) >> periods);
+        }
+
+        void shrink() {
+            long now = System.nanoTime();
+            long last = shrunkAt.get();
+            if (now - last < PERIOD_NANOS) {
+                // responses to messages already in flight
+                return;
+            }
+
+            long current = interval(now);
+            if (shrunkAt.compareAndSet(last, now)) {
+                shrunkInterval = Math.min(targetInterval * MAX_SHRINK, current * 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import com.notnoop.c2dm.C2DMResponse;
+
+/**
+ * Parses the responses of Google servers into their logical responses.
+ *
+ * The body of a response is a single form-encoded pair, either
+ * {@code id=<message id>} or {@code Error=<error code>}.  Rather than
+ * going through strings and name-value pairs, at most
+ * {@link #MAX_BODY} bytes of the body are read into a fixed buffer of the
+ * parser, decoded in place, and error codes are looked up in a
+ * precomputed hash table of their bytes.  A body whose first pair doesn't
+ * fit is reported as {@link C2DMResponse#UNKNOWN_ERROR}; the rest of it
+ * is left for the caller to consume.
+ *
+ * Parsers are cheap and not thread-safe; create one per response.
+ */
+public final class ResponseParser {
+    private static final byte[] ID = ascii("id");
+    private static final byte[] ERROR = ascii("Error");
+
+    private static final int TABLE_SIZE = 32;
+    private static final byte[][] errorKeys = new byte[TABLE_SIZE][];
+    private static final C2DMResponse[] errorResponses = new C2DMResponse[TABLE_SIZE];
+    static {
+        for (C2DMResponse response : C2DMResponse.values()) {
+            if (response.getKey() == null) {
+                continue;
+            }
+            byte[] key = ascii(response.getKey());
+            int slot = hash(key, 0, key.length);
+            while (errorKeys[slot] != null) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            errorKeys[slot] = key;
+            errorResponses[slot] = response;
+        }
+    }
+
+    /** The most bytes of a body that are read */
+    public static final int MAX_BODY = 1024;
+
+    private final byte[] buffer = new byte[MAX_BODY];
+    private boolean truncated;
+    private String messageId;
+
+    /**
+     * Returns the id Google assigned to the message of the last parsed
+     * response, or {@code null} if it wasn't successful
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Returns the logical response for the HTTP response, reading its
+     * entity if needed.
+     */
+    public C2DMResponse parse(HttpResponse response) throws IOException {
+        messageId = null;
+        switch (response.getStatusLine().getStatusCode()) {
+        case 503: return C2DMResponse.SERVER_UNAVAILABLE;
+        case 401: return C2DMResponse.INVALID_AUTHENTICATION;
+        case 200: return parse(response.getEntity());
+        default: return C2DMResponse.UNKNOWN_ERROR;
+        }
+    }
+
+    private C2DMResponse parse(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return C2DMResponse.UNKNOWN_ERROR;
+        }
+
+        int length = read(entity.getContent());
+        byte[] buf = buffer;
+
+        // only the first pair is meaningful
+        int end = indexOf(buf, 0, length, '&');
+        if (end == length && truncated) {
+            return C2DMResponse.UNKNOWN_ERROR;
+        }
+        int separator = indexOf(buf, 0, end, '=');
+        if (separator == end) {
+            return C2DMResponse.UNKNOWN_ERROR;
+        }
+
+        int nameStart = skipSpaces(buf, 0, separator);
+        int nameEnd = trimSpaces(buf, nameStart, separator);
+        int valueStart = skipSpaces(buf, separator + 1, end);
+        int valueEnd = decode(buf, valueStart, trimSpaces(buf, valueStart, end));
+
+        if (equals(buf, nameStart, nameEnd, ID)) {
+            messageId = new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+            return C2DMResponse.SUCCESSFUL;
+        } else if (equals(buf, nameStart, nameEnd, ERROR)) {
+            return errorFor(buf, valueStart, valueEnd);
+        }
+        return C2DMResponse.UNKNOWN_ERROR;
+    }
+
+    /**
+     * Reads the stream into the buffer, until its end or until the buffer
+     * is full, in which case the body is marked as truncated
+     */
+    private int read(InputStream in) throws IOException {
+        truncated = false;
+        if (in == null) {
+            return 0;
+        }
+
+        int length = 0;
+        while (length < buffer.length) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                return length;
+            }
+            length += n;
+        }
+        truncated = in.read() >= 0;
+        return length;
+    }
+
+    private static C2DMResponse errorFor(byte[] buf, int start, int end) {
+        int slot = hash(buf, start, end);
+        while (errorKeys[slot] != null) {
+            if (equals(buf, start, end, errorKeys[slot])) {
+                return errorResponses[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return C2DMResponse.UNKNOWN_ERROR;
+    }
+
+    /**
+     * Decodes the form-encoded bytes in place, and returns the end of the
+     * decoded bytes.  Malformed escapes are kept as is.
+     */
+    private static int decode(byte[] buf, int start, int end) {
+        int j = start;
+        for (int i = start; i < end; ++i, ++j) {
+            byte b = buf[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 2 < end) {
+                int hi = Character.digit(buf[i + 1], 16), lo = Character.digit(buf[i + 2], 16);
+                if (hi >= 0 && lo >= 0) {
+                    b = (byte) ((hi << 4) | lo);
+                    i += 2;
+                }
+            }
+            buf[j] = b;
+        }
+        return j;
+    }
+
+    private static int hash(byte[] buf, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; ++i) {
+            h = (h ^ buf[i]) * 0x01000193;
+        }
+        return (h ^ (h >>> 16)) & (TABLE_SIZE - 1);
+    }
+
+    private static boolean equals(byte[] buf, int start, int end, byte[] expected) {
+        return Arrays.equals(buf, start, end, expected, 0, expected.length);
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, char c) {
+        for (int i = start; i < end; ++i) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipSpaces(byte[] buf, int start, int end) {
+        while (start < end && (buf[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimSpaces(byte[] buf, int start, int end) {
+        while (end > start && (buf[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
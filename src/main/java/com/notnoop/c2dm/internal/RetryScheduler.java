@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * Schedules the resending of messages that Google asked to retry later.
+ *
+ * Retries wait on a delay queue served by a single thread, and are then
+ * handed to the target service like any new message.  The delay grows
+ * exponentially with each attempt, and is jittered so that messages
+ * failing together, e.g. during an outage, don't all come back at once.
+ * A {@code Retry-After} header on the response is honored as the minimum
+ * delay.
+ *
+ * Due retries are handed to a small pool of dispatch threads, through
+ * {@link SerialLanes} so that the retries to a device keep their order,
+ * and the scheduler thread never waits on a slow send, a full queue or
+ * the rate limiter.
+ */
+public class RetryScheduler {
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final int DISPATCH_THREADS = 4;
+    private static final int DISPATCH_LANES = 64;
+
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final SerialLanes dispatchLanes;
+    private volatile AbstractC2DMService target;
+
+    private final Set<PushRequest> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param maxAttempts   the maximum number of times a message is sent,
+     *          including the first attempt
+     * @param initialBackoff    the delay in millis before the first retry
+     * @param maxBackoff    the maximum delay in millis between attempts
+     */
+    public RetryScheduler(int maxAttempts, long initialBackoff, long maxBackoff) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "c2dm-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.dispatchLanes = new SerialLanes("c2dm-retried", DISPATCH_THREADS, DISPATCH_LANES) {
+            protected void send(PushRequest retry) {
+                target.push(retry);
+            }
+        };
+    }
+
+    /**
+     * Sets the service retried messages are pushed to.  For queued
+     * services, this is the queue rather than the underlying connection.
+     */
+    public void setTarget(AbstractC2DMService target) {
+        this.target = target;
+    }
+
+    /**
+     * Schedules the request to be sent again, if it has attempts left.
+     *
+     * @return  true if the request was scheduled, false if the caller should
+     *          report the failure
+     */
+    public boolean retry(final PushRequest request, HttpResponse response) {
+        final AbstractC2DMService target = this.target;
+        if (target == null || request.getAttempt() >= maxAttempts) {
+            return false;
+        }
+
+        long delay = delayFor(request.getAttempt(), retryAfter(response));
+        pending.add(request);
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    if (!pending.remove(request)) {
+                        return;
+                    }
+
+                    PushRequest retry = target.retryOf(request);
+                    try {
+                        dispatchLanes.submit(retry);
+                    } catch (RuntimeException e) {
+                        retry.fail(e);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pending.remove(request);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the delay in millis before sending the given attempt again.
+     *
+     * The backoff doubles with each attempt, up to {@code maxBackoff}; the
+     * delay is randomly picked between half the backoff and the full
+     * backoff, and is never shorter than the server requested.
+     */
+    long delayFor(int attempt, long retryAfter) {
+        long backoff = maxBackoff;
+        if (attempt - 1 < 62 && initialBackoff <= (maxBackoff >> (attempt - 1))) {
+            backoff = initialBackoff << (attempt - 1);
+        }
+
+        long half = backoff / 2;
+        long jitter = half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0;
+        return Math.max(retryAfter, backoff - half) + jitter;
+    }
+
+    /**
+     * Returns the delay in millis requested by the server through the
+     * {@code Retry-After} header, or 0 if none was requested.
+     */
+    static long retryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader(RETRY_AFTER);
+        if (header == null) {
+            return 0;
+        }
+
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // not delta-seconds, should be an HTTP-date
+        }
+        try {
+            Date date = DateUtils.parseDate(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (DateParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be retried
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the scheduler, failing any messages still waiting to be retried
+     */
+    public void stop() {
+        executor.shutdownNow();
+        for (PushRequest request : pending) {
+            if (pending.remove(request)) {
+                request.fail(new IllegalStateException("Service was stopped before retrying the message"));
+            }
+        }
+        dispatchLanes.shutdown();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches requests on an executor, sending the requests to the same
+ * device one at a time and in submission order, while requests to
+ * different devices are sent concurrently.
+ *
+ * Registration ids are hashed to a fixed number of lanes.  Each lane is a
+ * lock-free queue that at most one executor task drains at a time; a
+ * submitter schedules the lane only when it finds it idle.  Devices
+ * sharing a lane wait on one another, so there should be several times
+ * more lanes than executor threads.
+ *
+ * Background threads that would otherwise send requests themselves, such
+ * as those of schedulers, hand them over to lanes with their own pool of
+ * threads instead, so that one slow send doesn't hold up the others.
+ */
+public abstract class SerialLanes {
+    /** requests a lane sends before yielding its thread to other lanes */
+    private static final int BATCH = 64;
+
+    private final Executor executor;
+    /** the pool of the lanes, if they own one */
+    private final ExecutorService pool;
+    private final Lane[] lanes;
+    private final int mask;
+
+    /**
+     * @param lanes the number of lanes, rounded up to a power of two
+     */
+    public SerialLanes(Executor executor, int lanes) {
+        this(executor, null, lanes);
+    }
+
+    /**
+     * Sends the requests from a pool of daemon threads of their own, to
+     * be {@link #shutdown() shut down} with the lanes.
+     *
+     * @param name  the prefix of the names of the threads
+     * @param threads   the number of threads
+     * @param lanes the number of lanes, rounded up to a power of two
+     */
+    public SerialLanes(final String name, int threads, int lanes) {
+        this(null, Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), lanes);
+    }
+
+    private SerialLanes(Executor executor, ExecutorService pool, int lanes) {
+        int size = lanes <= 1 ? 1 : Integer.highestOneBit(lanes - 1) << 1;
+        this.executor = pool != null ? pool : executor;
+        this.pool = pool;
+        this.lanes = new Lane[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            this.lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Sends the request on the executor thread draining its lane
+     */
+    protected abstract void send(PushRequest request);
+
+    /**
+     * Fails a request that won't be sent, as the executor rejected its
+     * lane.  Subclasses holding resources for queued requests release them
+     * here, as they would after {@link #send}.
+     */
+    protected void discard(PushRequest request, RejectedExecutionException cause) {
+        request.fail(cause);
+    }
+
+    /**
+     * Queues the request behind the pending requests to the same device.
+     *
+     * @throws RejectedExecutionException   if the executor is shut down
+     */
+    public void submit(PushRequest request) {
+        int h = request.getRegistrationId().hashCode();
+        Lane lane = lanes[(h ^ (h >>> 16)) & mask];
+        lane.queue.offer(request);
+        lane.schedule(request);
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Shuts down the pool of the lanes, if they own one, once the
+     * requests already submitted are sent, waiting for them a few seconds
+     * at most.  Requests submitted afterwards are discarded.
+     */
+    public void shutdown() {
+        if (pool == null) {
+            return;
+        }
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+    }
+
+    private class Lane implements Runnable {
+        final Queue<PushRequest> queue = new ConcurrentLinkedQueue<PushRequest>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void schedule(PushRequest submitted) {
+            if (!scheduled.compareAndSet(false, true)) {
+                // the draining task will pick it up
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the submitter handles its own request, unless another
+                // thread discarded it already
+                boolean own = queue.remove(submitted);
+                PushRequest request;
+                while ((request = queue.poll()) != null) {
+                    discard(request, e);
+                }
+                scheduled.set(false);
+                if (own) {
+                    throw e;
+                }
+            }
+        }
+
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                PushRequest request = queue.poll();
+                if (request == null) {
+                    scheduled.set(false);
+                    // a submitter may have found the lane busy right before
+                    if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    send(request);
+                } catch (RuntimeException e) {
+                    request.fail(e);
+                }
+            }
+
+            // let other lanes use this thread
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                PushRequest request;
+                while ((request = queue.poll()) != null) {
+                    discard(request, e);
+                }
+                scheduled.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds the messages scheduled to be sent later, and pushes them to the
+ * target service once due.
+ *
+ * Pending messages sit in a hierarchical timing wheel: six levels of 64
+ * slots, where a slot of the first level spans one tick, and a slot of
+ * each following level spans a whole turn of the previous one.  A message
+ * goes to the lowest level whose turn covers its delay, in the slot of its
+ * due tick, so scheduling takes constant time whatever the number of
+ * pending messages.  Each time a level completes a turn, the next slot of
+ * the level above is emptied into the levels below, until the messages
+ * reach the first level and are pushed on their tick.  With the default
+ * 10 millis tick, six levels cover two decades; longer delays are
+ * reinserted until due.
+ *
+ * Each message takes a single node, linked into its slot.  Scheduling
+ * threads push nodes onto a lock-free stack, which the scheduler thread
+ * takes whole on each tick, so the wheel itself is only accessed by the
+ * scheduler thread.  The thread sleeps while nothing is scheduled.
+ *
+ * The scheduler thread only hands due messages to a small pool of
+ * dispatch threads, through {@link SerialLanes} so that messages to the
+ * same device are still pushed in the order they fall due.  A slow send,
+ * or a full queue in the target, thus holds up the messages to that
+ * device only, and never the ticks of the wheel.
+ *
+ * Messages whose future is cancelled stay in the wheel until due, and are
+ * then skipped.  Messages still waiting when the wheel is stopped are
+ * failed.
+ */
+public class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+    private static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+    private static final int DISPATCH_THREADS = 4;
+    private static final int DISPATCH_LANES = 64;
+
+    private final AbstractC2DMService target;
+    private final long tickNanos;
+    private final long origin = System.nanoTime();
+    private final SerialLanes dispatchLanes;
+
+    private final AtomicReference<Node> incoming = new AtomicReference<Node>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** accessed by the scheduler thread only */
+    private final Node[][] heads = new Node[LEVELS][SLOTS];
+    private final Node[][] tails = new Node[LEVELS][SLOTS];
+    /** the next tick to process */
+    private long tick;
+    /** the number of nodes in the wheel */
+    private int scheduled;
+
+    private final Thread thread;
+    private volatile boolean idle;
+    private volatile boolean stopped;
+
+    /**
+     * @param target    the service to push the due messages to
+     * @param tick  the resolution in millis of the send times
+     */
+    public TimingWheel(AbstractC2DMService target, long tick) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.target = target;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+
+        this.dispatchLanes = new SerialLanes("c2dm-scheduled", DISPATCH_THREADS, DISPATCH_LANES) {
+            protected void send(PushRequest request) {
+                dispatch(request);
+            }
+        };
+
+        this.thread = new Thread("c2dm-scheduler") {
+            public void run() {
+                advance();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static class Node {
+        final PushRequest request;
+        final long due;
+        Node next;
+
+        Node(PushRequest request, long due) {
+            this.request = request;
+            this.due = due;
+        }
+    }
+
+    /**
+     * Schedules the request to be pushed to the target at the given time,
+     * rounded up to the next tick.
+     *
+     * @param sendTime  the time in millis since the epoch to send at
+     */
+    public void schedule(PushRequest request, long sendTime) {
+        if (stopped) {
+            throw new IllegalStateException("Scheduler was stopped");
+        }
+
+        long delay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, sendTime - System.currentTimeMillis()));
+        long due = (System.nanoTime() - origin + delay + tickNanos - 1) / tickNanos;
+        Node node = new Node(request, due);
+        pending.incrementAndGet();
+        for (;;) {
+            Node head = incoming.get();
+            node.next = head;
+            if (incoming.compareAndSet(head, node)) {
+                break;
+            }
+        }
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Returns the number of messages scheduled and not yet due
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the scheduler thread, and fails the messages not yet due.
+     * Messages already due are still pushed, waiting a few seconds for
+     * the dispatch threads.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dispatchLanes.shutdown();
+
+        IllegalStateException failure =
+            new IllegalStateException("Service was stopped before sending the message");
+        fail(incoming.getAndSet(null), failure);
+        for (int level = 0; level < LEVELS; ++level) {
+            for (int slot = 0; slot < SLOTS; ++slot) {
+                fail(take(level, slot), failure);
+            }
+        }
+    }
+
+    private void fail(Node node, IllegalStateException failure) {
+        for (; node != null; node = node.next) {
+            pending.decrementAndGet();
+            node.request.fail(failure);
+        }
+    }
+
+    private void advance() {
+        while (!stopped) {
+            long now = (System.nanoTime() - origin) / tickNanos;
+            if (scheduled == 0) {
+                // the wheel is empty, so there is nothing to catch up with
+                tick = Math.max(tick, now);
+            }
+            insertIncoming();
+
+            while (tick <= now && !stopped) {
+                expire(tick);
+                tick++;
+            }
+
+            if (scheduled == 0) {
+                idle = true;
+                if (incoming.get() == null && !stopped) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            } else {
+                LockSupport.parkNanos(this, origin + tick * tickNanos - System.nanoTime());
+            }
+        }
+    }
+
+    private void insertIncoming() {
+        Node node = incoming.getAndSet(null);
+        // restore the scheduling order, so that messages due on the same
+        // tick are sent in the order they were scheduled
+        Node reversed = null;
+        while (node != null) {
+            Node next = node.next;
+            node.next = reversed;
+            reversed = node;
+            node = next;
+        }
+        while (reversed != null) {
+            Node next = reversed.next;
+            insert(reversed);
+            scheduled++;
+            reversed = next;
+        }
+    }
+
+    private void insert(Node node) {
+        long due = Math.max(node.due, tick);
+        long delay = Math.min(due - tick, MAX_DELAY);
+        due = tick + delay;
+
+        int level = 0;
+        while (delay >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) (due >>> (SLOT_BITS * level)) & MASK;
+
+        node.next = null;
+        if (heads[level][slot] == null) {
+            heads[level][slot] = node;
+        } else {
+            tails[level][slot].next = node;
+        }
+        tails[level][slot] = node;
+    }
+
+    private Node take(int level, int slot) {
+        Node node = heads[level][slot];
+        heads[level][slot] = null;
+        tails[level][slot] = null;
+        return node;
+    }
+
+    /**
+     * Hands the messages due on the tick to the dispatch threads, after
+     * moving down the messages of the levels completing a turn
+     */
+    private void expire(long tick) {
+        for (int level = 1; level < LEVELS; ++level) {
+            if (((tick >>> (SLOT_BITS * (level - 1))) & MASK) != 0) {
+                break;
+            }
+            Node node = take(level, (int) (tick >>> (SLOT_BITS * level)) & MASK);
+            while (node != null) {
+                Node next = node.next;
+                insert(node);
+                node = next;
+            }
+        }
+
+        Node node = take(0, (int) tick & MASK);
+        while (node != null) {
+            Node next = node.next;
+            if (node.due > tick) {
+                // beyond the reach of the wheel when scheduled
+                insert(node);
+            } else {
+                scheduled--;
+                pending.decrementAndGet();
+                fire(node.request);
+            }
+            node = next;
+        }
+    }
+
+    private void fire(PushRequest request) {
+        if (request.getFuture() != null && request.getFuture().isDone()) {
+            // cancelled
+            return;
+        }
+        try {
+            dispatchLanes.submit(request);
+        } catch (RuntimeException e) {
+            request.fail(e);
+        }
+    }
+
+    /**
+     * Pushes a due message to the target; called from a dispatch thread
+     */
+    private void dispatch(PushRequest request) {
+        if (request.getFuture() != null && request.getFuture().isDone()) {
+            // cancelled while waiting for its lane
+            return;
+        }
+        target.pushScheduled(request);
+    }
+}
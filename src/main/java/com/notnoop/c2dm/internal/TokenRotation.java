@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import com.notnoop.c2dm.AuthTokenProvider;
+
+/**
+ * Holds the authentication token of a service, and replays the messages
+ * rejected by Google servers for carrying a token that is no longer valid.
+ *
+ * Messages are stamped with the current token when sent.  A message
+ * rejected with a token that has been replaced since is replayed right
+ * away with the new one.  Otherwise, if a token provider is set, the
+ * message waits for a new token, and the first such message triggers a
+ * refresh that all others rejected meanwhile share.  Replays run on a
+ * background thread, so that blocking services never send a replay while
+ * still holding the connection of the rejected message.
+ *
+ * Each message is replayed at most once; a replayed message rejected
+ * again is reported as failed.
+ */
+public class TokenRotation {
+    private final AbstractC2DMService service;
+    private volatile Header authorization;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private volatile AuthTokenProvider provider;
+
+    // guarded by this
+    private boolean refreshing;
+    private List<PushRequest> waiting = new ArrayList<PushRequest>();
+
+    public TokenRotation(AbstractC2DMService service, String authToken) {
+        this.service = service;
+        this.authorization = authorizationOf(authToken);
+
+        // threads are only started once tokens rotate
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "c2dm-auth");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static Header authorizationOf(String authToken) {
+        return new BasicHeader("Authorization", "GoogleLogin auth=" + authToken);
+    }
+
+    /**
+     * Returns the Authorization header carrying the current token.
+     * Headers are immutable, so all requests share the current one.
+     */
+    public Header getAuthorization() {
+        return authorization;
+    }
+
+    /**
+     * Sets the source of new tokens when Google servers reject the
+     * current one.
+     *
+     * @param refreshInterval   the time in millis between proactive
+     *              refreshes, or non-positive to only refresh on rejection
+     */
+    public void setProvider(AuthTokenProvider provider, long refreshInterval) {
+        this.provider = provider;
+        if (refreshInterval > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    refresh();
+                }
+            }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replaces the token, and replays the messages waiting for it
+     */
+    public void update(String authToken) {
+        List<PushRequest> released;
+        synchronized (this) {
+            this.authorization = authorizationOf(authToken);
+            released = release();
+        }
+        replay(released);
+    }
+
+    /**
+     * Replays a message Google servers rejected for its token, if it
+     * wasn't replayed already, and either the token was replaced since or
+     * a new one can be requested.
+     *
+     * @return  true if the message will be replayed, false if the caller
+     *          should report the rejection
+     */
+    public boolean replay(PushRequest request) {
+        if (request.isReplayed()) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (request.getAuthorization() != authorization) {
+                return replay(Collections.singletonList(request));
+            }
+            if (provider == null) {
+                return false;
+            }
+            waiting.add(request);
+        }
+        if (!refresh()) {
+            synchronized (this) {
+                waiting.remove(request);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Requests a new token in the background, unless a refresh is
+     * already in progress
+     */
+    private boolean refresh() {
+        final AuthTokenProvider provider = this.provider;
+        synchronized (this) {
+            if (refreshing) {
+                return true;
+            }
+            refreshing = true;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    String authToken = null;
+                    try {
+                        authToken = provider.getAuthToken();
+                    } catch (Exception e) {
+                        // the waiting messages are replayed with the current token
+                    }
+
+                    List<PushRequest> released;
+                    synchronized (TokenRotation.this) {
+                        if (authToken != null) {
+                            authorization = authorizationOf(authToken);
+                        }
+                        refreshing = false;
+                        released = release();
+                    }
+                    replay(released);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                refreshing = false;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // requires holding this
+    private List<PushRequest> release() {
+        if (waiting.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<PushRequest> released = waiting;
+        waiting = new ArrayList<PushRequest>();
+        return released;
+    }
+
+    private boolean replay(final List<PushRequest> requests) {
+        if (requests.isEmpty()) {
+            return true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    for (PushRequest request : requests) {
+                        PushRequest replay = request.replayed();
+                        try {
+                            service.push(replay);
+                        } catch (RuntimeException e) {
+                            replay.fail(e);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public void stop() {
+        executor.shutdown();
+    }
+}
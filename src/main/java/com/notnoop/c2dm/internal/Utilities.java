@@ -31,14 +31,24 @@
 package com.notnoop.c2dm.internal;
 
 import org.apache.http.Header;
-import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
-import org.apache.http.ParseException;
-import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.protocol.HTTP;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.util.EntityUtils;
 
 import com.notnoop.c2dm.C2DMDelegate;
@@ -47,10 +57,10 @@ import com.notnoop.c2dm.C2DMResponse;
 import com.notnoop.c2dm.exceptions.RuntimeIOException;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 public final class Utilities {
     private Utilities() { throw new AssertionError("Uninstantiable class"); }
@@ -60,12 +70,35 @@ public final class Utilities {
      */
     public static String DEFAULT_C2DM_SERVICE_URI = "https://android.apis.google.com/c2dm/send";
 
-    public static ThreadSafeClientConnManager poolManager(int maxConnections) {
-        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager();
-        cm.setMaxTotal(maxConnections);
-        cm.setDefaultMaxPerRoute(maxConnections);
+    /**
+     * Returns the route the client takes to the given URI, through any
+     * configured proxy.
+     */
+    public static HttpRoute routeOf(HttpClient client, URI uri) {
+        HttpRequest request = new BasicHttpRequest("POST", uri.toString());
+        request.setParams(client.getParams());
+        try {
+            return ((AbstractHttpClient) client).getRoutePlanner()
+                .determineRoute(URIUtils.extractHost(uri), request, new BasicHttpContext());
+        } catch (HttpException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-        return cm;
+    public static DefaultHttpAsyncClient asyncClient(int maxConnections, int ioThreads) {
+        try {
+            HttpParams params = new BasicHttpParams();
+            DefaultHttpAsyncClient.setDefaultHttpParams(params);
+
+            PoolingClientConnectionManager cm = new PoolingClientConnectionManager(
+                    new DefaultConnectingIOReactor(ioThreads, params));
+            cm.setTotalMax(maxConnections);
+            cm.setDefaultMaxPerHost(maxConnections);
+
+            return new DefaultHttpAsyncClient(cm);
+        } catch (IOReactorException e) {
+            throw new RuntimeIOException(e);
+        }
     }
 
     public static List<NameValuePair> requestBodyOf(String registrationId, C2DMNotification notify) {
@@ -87,82 +120,99 @@ public final class Utilities {
 
     private static final String UPDATE_CLIENT_AUTH = "Update-Client-Auth";
 
-    public static void fireDelegate(C2DMNotification message,
+    /**
+     * Processes the response to a request.
+     *
+     * A new authentication token sent by Google servers is always picked
+     * up, so that subsequent requests don't fail authentication.  The body
+     * is only parsed if the outcome is needed, by the delegate, an awaiting
+     * future or the retry, circuit breaker, rate limiting or throttling
+     * stages.
+     *
+     * @param release   whether to release the connection once done, by
+     *          consuming the rest of the entity; the entities of
+     *          non-blocking clients are buffered and need no release
+     */
+    public static void handleResponse(PushRequest request, HttpResponse response,
+            C2DMDelegate delegate, AbstractC2DMService service, boolean release)
+            throws IOException {
+        try {
+            updateAuthToken(response, delegate, service);
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED
+                    && service.replayUnauthorized(request)) {
+                return;
+            }
+            fireDelegate(request, response, delegate, service);
+        } finally {
+            if (release) {
+                EntityUtils.consume(response.getEntity());
+            }
+        }
+    }
+
+    private static void updateAuthToken(HttpResponse response,
+            C2DMDelegate delegate, AbstractC2DMService service) {
+        Header header = response.getFirstHeader(UPDATE_CLIENT_AUTH);
+        if (header == null) {
+            return;
+        }
+
+        String newAuthToken = header.getValue();
+        service.updateAuthToken(newAuthToken);
+        if (delegate != null) {
+            delegate.authTokenUpdated(newAuthToken);
+        }
+    }
+
+    private static void fireDelegate(PushRequest request,
             HttpResponse response, C2DMDelegate delegate, AbstractC2DMService service) {
-        if (delegate == null) {
+        RetryScheduler retryScheduler = service.getRetryScheduler();
+        CircuitBreaker circuitBreaker = service.getCircuitBreaker();
+        RateLimiter rateLimiter = service.getRateLimiter();
+        DeviceThrottle deviceThrottle = service.getDeviceThrottle();
+        if (delegate == null && request.getFuture() == null && retryScheduler == null
+                && circuitBreaker == null && rateLimiter == null && deviceThrottle == null) {
             return;
         }
 
-        List<NameValuePair> pairs;
+        ResponseParser parser = new ResponseParser();
+        C2DMResponse r;
         try {
-            pairs = parseResponse(response.getEntity());
-        } catch (ParseException e) {
-            throw new RuntimeException(e);
+            r = parser.parse(response);
         } catch (IOException e) {
+            request.fail(e);
             throw new RuntimeIOException(e);
         }
-        C2DMResponse r = logicalResponseFor(response, pairs);
+        String id = parser.getMessageId();
+        C2DMNotification message = request.getMessage();
 
-        if (r == C2DMResponse.SUCCESSFUL) {
-            assert pairs.size() == 1 && "id".equalsIgnoreCase(pairs.get(0).getName());
-            String id = pairs.get(0).getValue();
-            delegate.messageSent(message, r, id);
-        } else {
-            delegate.messageFailed(message, r);
+        if (circuitBreaker != null) {
+            circuitBreaker.record(r);
         }
-
-        if (response.containsHeader(UPDATE_CLIENT_AUTH)) {
-            Header header = response.getFirstHeader(UPDATE_CLIENT_AUTH);
-
-            String newAuthToken = header.getValue();
-            service.updateAuthToken(newAuthToken);
-            delegate.authTokenUpdated(newAuthToken);
+        if (rateLimiter != null) {
+            rateLimiter.record(r);
         }
-    }
-
-    private static final C2DMResponse[] logicalResponses = C2DMResponse.values();
-    public static C2DMResponse logicalResponseFor(HttpResponse response, List<NameValuePair> pairs) {
-        int statusCode = response.getStatusLine().getStatusCode();
-        switch (statusCode) {
-        case 503: return C2DMResponse.SERVER_UNAVAILABLE;
-        case 401: return C2DMResponse.INVALID_AUTHENTICATION;
-        case 200: {
-            assert pairs.size() == 1;
-
-            NameValuePair entry = pairs.get(0);
-            if ("id".equals(entry.getName())) {
-                return C2DMResponse.SUCCESSFUL;
+        if (deviceThrottle != null) {
+            if (r == C2DMResponse.DEVICE_QUOTA_EXCEEDED) {
+                deviceThrottle.throttle(request.getRegistrationId());
+            } else if (r == C2DMResponse.SUCCESSFUL) {
+                deviceThrottle.reset(request.getRegistrationId());
             }
+        }
 
-            assert "Error".equals(entry.getName());
-            String value = entry.getValue();
+        boolean retrying = r.shouldRetry() && retryScheduler != null
+            && retryScheduler.retry(request, response);
 
-            for (C2DMResponse r: logicalResponses) {
-                if (value.equals(r.getKey())) {
-                    return r;
-                }
+        if (r == C2DMResponse.SUCCESSFUL) {
+            if (delegate != null) {
+                delegate.messageSent(message, r, id);
             }
-
-            return C2DMResponse.UNKNOWN_ERROR;
-        }
-        default: return C2DMResponse.UNKNOWN_ERROR;
+        } else if (delegate != null && !retrying) {
+            delegate.messageFailed(message, r);
         }
-    }
 
-    /**
-     * Workaround Google responding with Content-Type being
-     * "text/plain" rather than "application/x-www-form-urlencoded"
-     * as expected by Apache HTTP.
-     */
-    public static List<NameValuePair> parseResponse(HttpEntity entity)
-    throws ParseException, IOException {
-        String charset = "UTF-8";
-        List<NameValuePair> result = new ArrayList<NameValuePair>();
-        final String content = EntityUtils.toString(entity, HTTP.ASCII);
-        if (content != null && content.length() > 0) {
-            result = new ArrayList <NameValuePair>();
-            URLEncodedUtils.parse(result, new Scanner(content), charset);
+        if (!retrying) {
+            request.complete(r, id);
         }
-        return result;
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.c2dm.utils.C2DMServerStub;
+
+import static org.junit.Assert.*;
+
+public class MulticastTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private C2DMServerStub server;
+    private C2DMService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = C2DMServerStub.start(8);
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.stop();
+        }
+        server.stop();
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; ++i) {
+            ids.add("device" + i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void aggregatesOutcomes() throws Exception {
+        server.respondNext(200, "Error=NotRegistered");
+        server.respondNext(200, "Error=InvalidRegistration");
+        server.respondNext(200, "Error=QuotaExceeded");
+        server.respondNext(503, "");
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .asPool(Executors.newFixedThreadPool(4), 4)
+            .build();
+
+        MulticastResult result = service.multicast(ids(100), message).get(10, TimeUnit.SECONDS);
+
+        assertEquals(100, result.getTotalCount());
+        assertEquals(96, result.getSuccessCount());
+        assertEquals(0, result.getErrorCount());
+        assertEquals(1, result.getFailureCount(C2DMResponse.NOT_REGISTERED));
+        assertEquals(1, result.getFailureCount(C2DMResponse.INVALID_REGISTRATION));
+        assertEquals(1, result.getFailureCount(C2DMResponse.QUOTA_EXCEEDED));
+        assertEquals(1, result.getFailureCount(C2DMResponse.SERVER_UNAVAILABLE));
+        assertEquals(2, result.getUnregisteredIds().size());
+        assertEquals(100, server.getRequestCount());
+    }
+
+    @Test
+    public void reportsProgressInChunks() throws Exception {
+        final List<MulticastResult> chunks = new CopyOnWriteArrayList<MulticastResult>();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .asQueued()
+            .withQueueThreads(4)
+            .build();
+
+        MulticastResult result = service.multicast(ids(95), message, 10, new MulticastListener() {
+            public void chunkCompleted(MulticastResult chunk) {
+                chunks.add(chunk);
+            }
+        }).get(10, TimeUnit.SECONDS);
+
+        assertEquals(95, result.getSuccessCount());
+        assertEquals(10, chunks.size());
+        for (int i = 0; i < 9; ++i) {
+            assertEquals(10, chunks.get(i).getTotalCount());
+        }
+        assertEquals(5, chunks.get(9).getTotalCount());
+    }
+
+    @Test
+    public void countsErrors() throws Exception {
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri("http://localhost:1/c2dm/send")
+            .build();
+
+        MulticastResult result = service.multicast(ids(3), message).get(10, TimeUnit.SECONDS);
+        assertEquals(3, result.getErrorCount());
+        assertEquals(3, result.getTotalCount());
+    }
+
+    @Test
+    public void completesEmptyMulticast() throws Exception {
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .build();
+
+        MulticastResult result = service.multicast(Collections.<String>emptyList(), message)
+            .get(1, TimeUnit.SECONDS);
+        assertEquals(0, result.getTotalCount());
+    }
+}
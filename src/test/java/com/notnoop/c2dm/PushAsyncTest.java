@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.c2dm.exceptions.NetworkIOException;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+
+import static org.junit.Assert.*;
+
+public class PushAsyncTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private C2DMServerStub server;
+    private C2DMService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = C2DMServerStub.start(8);
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.stop();
+        }
+        server.stop();
+    }
+
+    private C2DMServiceBuilder newService() {
+        return C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri());
+    }
+
+    private void assertSent(C2DMService service) throws Exception {
+        this.service = service;
+        C2DMResult result = service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+
+        assertTrue(result.isSuccessful());
+        assertEquals("registration", result.getRegistrationId());
+        assertSame(message, result.getMessage());
+        assertEquals("0:1234{abcdef", result.getMessageId());
+    }
+
+    @Test
+    public void completesWithSimpleService() throws Exception {
+        assertSent(newService().build());
+    }
+
+    @Test
+    public void completesWithPooledService() throws Exception {
+        assertSent(newService().asPool(Executors.newFixedThreadPool(2), 2).build());
+    }
+
+    @Test
+    public void completesWithVirtualThreadPool() throws Exception {
+        assertSent(newService().asVirtualThreadPool(2).build());
+    }
+
+    @Test
+    public void completesWithQueuedService() throws Exception {
+        assertSent(newService().asQueued().build());
+    }
+
+    @Test
+    public void completesWithPrioritizedPool() throws Exception {
+        service = newService().asPool(2).asQueued().withPriorities().build();
+
+        // more messages than the pool takes from the queue at once
+        List<CompletableFuture<C2DMResult>> results = new ArrayList<CompletableFuture<C2DMResult>>();
+        for (int i = 0; i < 50; ++i) {
+            results.add(service.pushAsync("registration" + i, message));
+        }
+        for (CompletableFuture<C2DMResult> result : results) {
+            assertTrue(result.get(5, TimeUnit.SECONDS).isSuccessful());
+        }
+    }
+
+    @Test
+    public void completesWithNonBlockingService() throws Exception {
+        assertSent(newService().asNonBlocking(2).build());
+    }
+
+    @Test
+    public void completesWithFailedResponse() throws Exception {
+        server.respondWith(200, "Error=InvalidRegistration");
+        service = newService().asQueued().build();
+
+        C2DMResult result = service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+        assertEquals(C2DMResponse.INVALID_REGISTRATION, result.getResponse());
+        assertNull(result.getMessageId());
+    }
+
+    @Test
+    public void completesExceptionallyOnNetworkError() throws Exception {
+        service = newService().build();
+        server.stop();
+
+        try {
+            service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+            fail("Expected a network failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NetworkIOException);
+        }
+    }
+
+    @Test
+    public void externalServicesOnlyImplementPush() {
+        // implements none of the methods added since
+        C2DMService external = new C2DMService() {
+            public void push(String registrationId, String payload) {}
+            public void push(String registrationId, C2DMNotification message) {}
+            public void start() {}
+            public void stop() {}
+        };
+
+        try {
+            external.pushAsync("registration", message);
+            fail("Expected pushAsync to be unsupported");
+        } catch (UnsupportedOperationException e) {}
+        try {
+            external.pushAfter("registration", message, 10);
+            fail("Expected pushAfter to be unsupported");
+        } catch (UnsupportedOperationException e) {}
+        try {
+            external.multicast(Collections.singletonList("registration"), message);
+            fail("Expected multicast to be unsupported");
+        } catch (UnsupportedOperationException e) {}
+    }
+}
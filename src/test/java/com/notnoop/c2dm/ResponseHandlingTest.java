@@ -0,0 +1,247 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.c2dm.utils.C2DMServerStub;
+
+import static org.junit.Assert.*;
+
+public class ResponseHandlingTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private C2DMServerStub server;
+    private C2DMService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = C2DMServerStub.start(8);
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.stop();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void updatesAuthTokenWithoutDelegate() throws Exception {
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .build();
+
+        server.respondNext(200, "id=0:1", "Update-Client-Auth", "renewed");
+        service.push("registration", message);
+        assertEquals("GoogleLogin auth=token", server.getLastAuthorization());
+
+        service.push("registration", message);
+        assertEquals("GoogleLogin auth=renewed", server.getLastAuthorization());
+    }
+
+    @Test
+    public void releasesConnectionWhenDelegateThrows() throws Exception {
+        final AtomicInteger updates = new AtomicInteger();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .asPool(2)
+            .withDelegate(new C2DMDelegate() {
+                public void messageSent(C2DMNotification message, C2DMResponse response, String id) {}
+
+                public void messageFailed(C2DMNotification message, C2DMResponse response) {}
+
+                public void authTokenUpdated(String newAuthToken) {
+                    updates.incrementAndGet();
+                    throw new IllegalStateException("faulty delegate");
+                }
+            })
+            .build();
+
+        // the delegate fails before the response body is read
+        server.setHeader("Update-Client-Auth", "renewed");
+        for (int i = 0; i < 5; i++) {
+            service.push("registration" + i, message);
+        }
+
+        // leaked connections would exhaust the pool after two messages
+        long deadline = System.currentTimeMillis() + 5000;
+        while (updates.get() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, updates.get());
+        assertEquals(5, server.getRequestCount());
+    }
+
+    @Test
+    public void replaysUnauthorizedMessageWithUpdatedToken() throws Exception {
+        final AtomicInteger sent = new AtomicInteger();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withDelegate(countingDelegate(sent))
+            .build();
+
+        server.acceptAuthToken("renewed");
+        server.setHeader("Update-Client-Auth", "renewed");
+        service.push("registration", message);
+
+        awaitCount(sent, 1);
+        assertEquals(1, sent.get());
+        assertEquals(2, server.getRequestCount());
+        assertEquals("GoogleLogin auth=renewed", server.getLastAuthorization());
+    }
+
+    @Test
+    public void concurrentRejectionsShareOneRefresh() throws Exception {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger refreshes = new AtomicInteger();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .asPool(4)
+            .withDelegate(countingDelegate(sent))
+            .withAuthTokenProvider(new AuthTokenProvider() {
+                public String getAuthToken() throws IOException {
+                    refreshes.incrementAndGet();
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return "fresh";
+                }
+            }, 0)
+            .build();
+
+        server.acceptAuthToken("fresh");
+        for (int i = 0; i < 20; i++) {
+            service.push("registration" + i, message);
+        }
+
+        awaitCount(sent, 20);
+        assertEquals(20, sent.get());
+        assertEquals(1, refreshes.get());
+        assertEquals(40, server.getRequestCount());
+    }
+
+    @Test
+    public void refreshesTokenFromClientLogin() throws Exception {
+        server.issueAuthToken("first");
+        service = C2DM.newService()
+            .withServiceUri(server.getServiceUri())
+            .withAuthTokenProvider(new ClientLogin(server.getLoginUri(),
+                    "role@example.com", "secret", "notnoop-test-1.0"), 100)
+            .build();
+
+        service.push("registration", message);
+        assertEquals("GoogleLogin auth=first", server.getLastAuthorization());
+
+        server.issueAuthToken("second");
+        long deadline = System.currentTimeMillis() + 5000;
+        do {
+            Thread.sleep(20);
+            service.push("registration", message);
+        } while (!"GoogleLogin auth=second".equals(server.getLastAuthorization())
+                && System.currentTimeMillis() < deadline);
+        assertEquals("GoogleLogin auth=second", server.getLastAuthorization());
+    }
+
+    @Test(expected = IOException.class)
+    public void reportsRejectedLogin() throws Exception {
+        new ClientLogin(server.getLoginUri(), "role@example.com", "wrong", "notnoop-test-1.0")
+            .getAuthToken();
+    }
+
+    @Test
+    public void logsInThroughProxy() throws Exception {
+        server.issueAuthToken("proxied");
+        ClientLogin direct = new ClientLogin("http://c2dm-login.invalid/accounts/ClientLogin",
+                "role@example.com", "secret", "notnoop-test-1.0");
+        URI stub = new URI(server.getLoginUri());
+        ClientLogin proxied = direct.configure(0, new HttpHost(stub.getHost(), stub.getPort()));
+
+        assertEquals("proxied", proxied.getAuthToken());
+        assertNull(direct.getProxy());
+        assertEquals(ClientLogin.DEFAULT_TIMEOUT, proxied.getTimeout());
+    }
+
+    @Test(timeout = 5000)
+    public void timesOutHungLogin() throws Exception {
+        // accepts connections, but never answers
+        ServerSocket hung = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            ClientLogin login = new ClientLogin("http://127.0.0.1:" + hung.getLocalPort()
+                    + "/accounts/ClientLogin", "role@example.com", "secret", "notnoop-test-1.0",
+                    200, null);
+            login.getAuthToken();
+            fail("Expected the login to time out");
+        } catch (SocketTimeoutException e) {
+        } finally {
+            hung.close();
+        }
+    }
+
+    private static C2DMDelegate countingDelegate(final AtomicInteger sent) {
+        return new C2DMDelegate() {
+            public void messageSent(C2DMNotification message, C2DMResponse response, String id) {
+                sent.incrementAndGet();
+            }
+
+            public void messageFailed(C2DMNotification message, C2DMResponse response) {}
+
+            public void authTokenUpdated(String newAuthToken) {}
+        };
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+import com.notnoop.c2dm.utils.CountingDelegate;
+
+import static org.junit.Assert.*;
+
+public class C2DMAsyncServiceTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private C2DMServerStub server;
+    private CountingDelegate delegate;
+    private C2DMService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = C2DMServerStub.start(64);
+        delegate = new CountingDelegate();
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.stop();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void sendsManyRequestsOnFewThreads() throws Exception {
+        server.setLatency(100);
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withDelegate(delegate)
+            .asNonBlocking(64, 2)
+            .build();
+
+        int messages = 256;
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; ++i) {
+            service.push("registration" + i, message);
+        }
+
+        assertTrue(delegate.await(messages, 10, TimeUnit.SECONDS));
+        assertEquals(messages, delegate.getSentCount());
+        assertEquals(messages, server.getRequestCount());
+
+        // sequentially, these would take 25 seconds
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void reportsFailures() throws Exception {
+        server.respondWith(200, "Error=NotRegistered");
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withDelegate(delegate)
+            .asNonBlocking(4)
+            .build();
+
+        service.push("registration", message);
+
+        assertTrue(delegate.await(1, 5, TimeUnit.SECONDS));
+        assertEquals(1, delegate.getFailedCount());
+    }
+}
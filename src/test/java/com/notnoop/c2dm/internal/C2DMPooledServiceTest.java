@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+import com.notnoop.c2dm.utils.CountingDelegate;
+
+import static org.junit.Assert.*;
+
+public class C2DMPooledServiceTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private C2DMServerStub server;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = C2DMServerStub.start(64);
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        server.stop();
+    }
+
+    @Test(timeout = 5000)
+    public void releasesDispatchSlotOfInvalidRequests() throws Exception {
+        CountingDelegate delegate = new CountingDelegate();
+        C2DMPooledService service = new C2DMPooledService(new DefaultHttpClient(),
+                server.getServiceUri(), "token", executor, delegate, 0);
+        service.setOrderedDelivery(4);
+        service.setDispatchLimit(1);
+
+        for (int i = 0; i < 3; ++i) {
+            try {
+                service.push(new PushRequest(null, message));
+                fail("accepted a request without registration id");
+            } catch (NullPointerException e) {
+                // expected
+            }
+        }
+
+        service.push(new PushRequest("registration", message));
+        assertTrue(delegate.await(1, 2, TimeUnit.SECONDS));
+        assertEquals(1, delegate.getSentCount());
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResponse;
+import com.notnoop.c2dm.C2DMResult;
+import com.notnoop.c2dm.OverflowPolicy;
+import com.notnoop.c2dm.Priority;
+import com.notnoop.c2dm.exceptions.NetworkIOException;
+import com.notnoop.c2dm.exceptions.QueueFullException;
+
+import static org.junit.Assert.*;
+
+public class C2DMQueuedServiceTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingService inner = new BlockingService();
+    private C2DMQueuedService service;
+
+    @After
+    public void tearDown() {
+        inner.release.countDown();
+        if (service != null) {
+            service.stop();
+        }
+    }
+
+    private C2DMQueuedService queued(int capacity, OverflowPolicy policy, long timeout)
+            throws InterruptedException {
+        return queued(capacity, policy, timeout, false);
+    }
+
+    private C2DMQueuedService queued(int capacity, OverflowPolicy policy, long timeout,
+            boolean coalesce) throws InterruptedException {
+        service = new C2DMQueuedService(inner, "http://localhost/", "token",
+                capacity, policy, timeout, 1, 1, 0, coalesce);
+        service.start();
+
+        // occupy the worker thread, so subsequent messages stay queued
+        service.push("busy", message);
+        assertTrue(inner.entered.await(5, TimeUnit.SECONDS));
+        return service;
+    }
+
+    @Test
+    public void rejectPolicyThrowsWhenFull() throws Exception {
+        queued(2, OverflowPolicy.REJECT, -1);
+        service.push("a", message);
+        service.push("b", message);
+
+        try {
+            service.push("c", message);
+            fail("Expected queue to be full");
+        } catch (QueueFullException e) {}
+
+        assertEquals(2, service.getQueueDepth());
+        assertEquals(1, service.getRejectedCount());
+        assertEquals(0, service.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestPolicyKeepsQueueBounded() throws Exception {
+        queued(2, OverflowPolicy.DROP_OLDEST, -1);
+        for (int i = 0; i < 5; ++i) {
+            service.push("id" + i, message);
+        }
+
+        assertEquals(2, service.getQueueDepth());
+        assertEquals(0, service.getRejectedCount());
+        assertEquals(3, service.getDroppedCount());
+    }
+
+    @Test
+    public void blockPolicyTimesOut() throws Exception {
+        queued(1, OverflowPolicy.BLOCK, 50);
+        service.push("a", message);
+
+        long start = System.nanoTime();
+        try {
+            service.push("b", message);
+            fail("Expected queue to be full");
+        } catch (QueueFullException e) {}
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, service.getRejectedCount());
+    }
+
+    @Test
+    public void preservesOrderPerRegistrationId() throws Exception {
+        RecordingService recorder = new RecordingService();
+        service = new C2DMQueuedService(recorder, "http://localhost/", "token",
+                Integer.MAX_VALUE, OverflowPolicy.BLOCK, -1, 4, 16, 1);
+        service.start();
+
+        int devices = 8, messages = 200;
+        for (int i = 0; i < messages; ++i) {
+            for (int d = 0; d < devices; ++d) {
+                service.push("device" + d,
+                    C2DM.newNotification().collapseKey(String.valueOf(i)).build());
+            }
+        }
+
+        assertTrue(recorder.sent.await(5, TimeUnit.SECONDS));
+        for (int d = 0; d < devices; ++d) {
+            List<String> keys = recorder.received.get("device" + d);
+            assertEquals(messages, keys.size());
+            for (int i = 0; i < messages; ++i) {
+                assertEquals(String.valueOf(i), keys.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void keepsDrainingAfterFailures() throws Exception {
+        final List<String> sent = new CopyOnWriteArrayList<String>();
+        AbstractC2DMService failing = new AbstractC2DMService("http://localhost/", "token") {
+            @Override
+            protected void push(PushRequest request) {
+                if (request.getRegistrationId().startsWith("bad")) {
+                    throw new NetworkIOException(new IOException("unreachable"));
+                }
+                sent.add(request.getRegistrationId());
+            }
+        };
+        service = new C2DMQueuedService(failing, "http://localhost/", "token",
+                10, OverflowPolicy.BLOCK, -1, 1, 4, 0);
+        service.start();
+
+        service.push("bad0", message);
+        CompletableFuture<C2DMResult> failed = service.pushAsync("bad1", message);
+        service.push("good", message);
+
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("Expected the message to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NetworkIOException);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sent.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, sent.size());
+
+        // the drain thread survived the failed batch
+        service.push("bad2", message);
+        service.push("later", message);
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sent.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("later", sent.get(1));
+    }
+
+    @Test
+    public void coalescesWaitingMessages() throws Exception {
+        queued(4, OverflowPolicy.REJECT, -1, true);
+        List<CompletableFuture<C2DMResult>> futures = new ArrayList<CompletableFuture<C2DMResult>>();
+        for (int i = 0; i < 10; ++i) {
+            futures.add(service.pushAsync("a", message));
+        }
+        service.push("b", message);
+        service.push("a", C2DM.newNotification().collapseKey("other").build());
+
+        assertEquals(3, service.getQueueDepth());
+        assertEquals(9, service.getCoalesceHitCount());
+        assertEquals(9, service.getReplacedCount());
+
+        inner.release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (inner.pushed.size() < 4 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, inner.pushed.size());
+
+        PushRequest latest = inner.pushed.get(1);
+        assertEquals("a", latest.getRegistrationId());
+        assertSame(futures.get(9), latest.getFuture());
+
+        latest.complete(C2DMResponse.SUCCESSFUL, "id");
+        for (CompletableFuture<C2DMResult> future : futures) {
+            assertEquals("id", future.get(1, TimeUnit.SECONDS).getMessageId());
+        }
+    }
+
+    @Test
+    public void retriesDoNotReplaceNewerMessages() throws Exception {
+        queued(4, OverflowPolicy.REJECT, -1, true);
+        RetryScheduler retryScheduler = new RetryScheduler(3, 1, 1);
+        retryScheduler.setTarget(service);
+        try {
+            C2DMNotification v1 = C2DM.newNotification().collapseKey("key").data("v", "1").build();
+            C2DMNotification v2 = C2DM.newNotification().collapseKey("key").data("v", "2").build();
+            CompletableFuture<C2DMResult> first = new CompletableFuture<C2DMResult>();
+            CompletableFuture<C2DMResult> second = service.pushAsync("a", v2);
+
+            // v1 was sent before v2 was pushed, and Google asks to retry it
+            assertTrue(retryScheduler.retry(new PushRequest("a", v1, first),
+                    new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Unavailable")));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (retryScheduler.getPendingCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(20);
+            assertEquals(1, service.getQueueDepth());
+
+            inner.release.countDown();
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (inner.pushed.size() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(20);
+            assertEquals(2, inner.pushed.size());
+            PushRequest sent = inner.pushed.get(1);
+            assertEquals("2", version(sent.getMessage()));
+            assertSame(second, sent.getFuture());
+
+            sent.complete(C2DMResponse.SUCCESSFUL, "id");
+            assertEquals("2", version(second.get(1, TimeUnit.SECONDS).getMessage()));
+            assertEquals("2", version(first.get(1, TimeUnit.SECONDS).getMessage()));
+        } finally {
+            retryScheduler.stop();
+        }
+    }
+
+    @Test
+    public void expandsCompactMessagesWhenDrained() throws Exception {
+        service = new C2DMQueuedService(inner, "http://localhost/", "token",
+                10, OverflowPolicy.REJECT, -1, 1, 1, 0);
+        service.setCompact(true);
+        service.start();
+        service.push("busy", message);
+        assertTrue(inner.entered.await(5, TimeUnit.SECONDS));
+
+        C2DMNotification distinct = C2DM.newNotification()
+            .collapseKey("other").data("text", "hello").build();
+        CompletableFuture<C2DMResult> future = service.pushAsync("a", distinct);
+        inner.release.countDown();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (inner.pushed.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        PushRequest sent = inner.pushed.get(1);
+        assertEquals("a", sent.getRegistrationId());
+        assertArrayEquals(NotificationEntity.encodedParameters(distinct),
+                NotificationEntity.encodedParameters(sent.getMessage()));
+
+        sent.complete(C2DMResponse.SUCCESSFUL, "id");
+        assertEquals("other", future.get(1, TimeUnit.SECONDS).getMessage().getCollapseKey());
+    }
+
+    @Test
+    public void recoversJournaledMessages() throws Exception {
+        File directory = folder.newFolder("journal");
+        service = new C2DMQueuedService(inner, "http://localhost/", "token",
+                10, OverflowPolicy.REJECT, -1, 1, 1, 0);
+        service.setJournal(new Journal(directory, 4096, 10));
+        service.start();
+        service.push("busy", message);
+        assertTrue(inner.entered.await(5, TimeUnit.SECONDS));
+        service.push("a", message);
+        service.push("b", message);
+        service.stop();
+
+        BlockingService recovering = new BlockingService();
+        recovering.release.countDown();
+        Journal journal = new Journal(directory, 4096, 10);
+        service = new C2DMQueuedService(recovering, "http://localhost/", "token",
+                10, OverflowPolicy.REJECT, -1, 1, 1, 0);
+        service.setJournal(journal);
+        service.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (recovering.pushed.size() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, recovering.pushed.size());
+        assertEquals("busy", recovering.pushed.get(0).getRegistrationId());
+        assertEquals("b", recovering.pushed.get(2).getRegistrationId());
+
+        assertEquals(3, journal.getPendingCount());
+        for (PushRequest request : recovering.pushed) {
+            request.complete(C2DMResponse.SUCCESSFUL, "id");
+        }
+        assertEquals(0, journal.getPendingCount());
+    }
+
+    @Test
+    public void recoversScheduledMessages() throws Exception {
+        File directory = folder.newFolder("journal");
+        service = new C2DMQueuedService(inner, "http://localhost/", "token",
+                10, OverflowPolicy.REJECT, -1, 1, 1, 0);
+        service.setJournal(new Journal(directory, 4096, 10));
+        service.start();
+        long sendTime = System.currentTimeMillis() + 300;
+        CompletableFuture<C2DMResult> stopped = service.pushAt("later", message, sendTime);
+        service.pushAfter("cancelled", message, 300).cancel(false);
+        service.stop();
+        assertTrue(stopped.isCompletedExceptionally());
+
+        BlockingService recovering = new BlockingService();
+        recovering.release.countDown();
+        Journal journal = new Journal(directory, 4096, 10);
+        service = new C2DMQueuedService(recovering, "http://localhost/", "token",
+                10, OverflowPolicy.REJECT, -1, 1, 1, 0);
+        service.setJournal(journal);
+        service.start();
+        assertEquals(1, journal.getPendingCount());
+        assertEquals(1, service.getTimingWheel().getPendingCount());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (recovering.pushed.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(System.currentTimeMillis() >= sendTime - 1);
+        assertEquals(1, recovering.pushed.size());
+        assertEquals("later", recovering.pushed.get(0).getRegistrationId());
+
+        recovering.pushed.get(0).complete(C2DMResponse.SUCCESSFUL, "id");
+        assertEquals(0, journal.getPendingCount());
+    }
+
+    private static String version(C2DMNotification message) {
+        for (Map.Entry<String, String> entry : message.getData()) {
+            if (entry.getKey().equals("data.v")) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stub service that records the collapse keys sent to each device
+     */
+    static class RecordingService extends AbstractC2DMService {
+        final ConcurrentMap<String, List<String>> received =
+            new ConcurrentHashMap<String, List<String>>();
+        final CountDownLatch sent = new CountDownLatch(8 * 200);
+
+        RecordingService() {
+            super("http://localhost/", "token");
+        }
+
+        @Override
+        protected void push(PushRequest request) {
+            List<String> keys = new CopyOnWriteArrayList<String>();
+            List<String> existing = received.putIfAbsent(request.getRegistrationId(), keys);
+            (existing != null ? existing : keys).add(request.getMessage().getCollapseKey());
+            sent.countDown();
+        }
+    }
+
+    @Test
+    public void sendsHigherPrioritiesFirst() throws Exception {
+        service = new C2DMQueuedService(inner, "http://localhost/", "token",
+                100, OverflowPolicy.REJECT, -1, 1, 1, 0, false);
+        service.setPriorityWeights(16, 4, 1);
+        service.start();
+        service.push("busy", message);
+        assertTrue(inner.entered.await(5, TimeUnit.SECONDS));
+
+        C2DMNotification bulk = C2DM.newNotification()
+            .collapseKey("bulk").priority(Priority.LOW).build();
+        C2DMNotification urgent = C2DM.newNotification()
+            .collapseKey("urgent").priority(Priority.HIGH).build();
+        // each priority has the whole capacity to itself
+        for (int i = 0; i < 100; ++i) {
+            service.push("bulk" + i, bulk);
+        }
+        service.push("urgent0", urgent);
+        service.push("urgent1", urgent);
+        assertEquals(100, service.getQueueDepth(Priority.LOW));
+        assertEquals(2, service.getQueueDepth(Priority.HIGH));
+        assertEquals(0, service.getQueueDepth(Priority.NORMAL));
+
+        Thread.sleep(20);
+        inner.release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (inner.pushed.size() < 103 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(103, inner.pushed.size());
+
+        // the urgent messages overtake the backlog right away
+        assertEquals("busy", inner.pushed.get(0).getRegistrationId());
+        assertEquals("urgent0", inner.pushed.get(1).getRegistrationId());
+        assertEquals("urgent1", inner.pushed.get(2).getRegistrationId());
+        assertEquals("bulk0", inner.pushed.get(3).getRegistrationId());
+
+        assertTrue(service.getMaxWaitTime(Priority.HIGH) >= 20);
+        assertTrue(service.getAverageWaitTime(Priority.LOW) >= 20);
+    }
+
+    /**
+     * Stub service that blocks on the first message until released
+     */
+    static class BlockingService extends AbstractC2DMService {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<PushRequest> pushed = new CopyOnWriteArrayList<PushRequest>();
+
+        BlockingService() {
+            super("http://localhost/", "token");
+        }
+
+        @Override
+        protected void push(PushRequest request) {
+            pushed.add(request);
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
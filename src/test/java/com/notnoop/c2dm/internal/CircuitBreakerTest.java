@@ -0,0 +1,189 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResponse;
+import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.CircuitBreakerListener;
+import com.notnoop.c2dm.CircuitBreakerMetrics;
+import com.notnoop.c2dm.CircuitState;
+import com.notnoop.c2dm.exceptions.CircuitOpenException;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private final List<CircuitState> transitions = new CopyOnWriteArrayList<CircuitState>();
+    private final CircuitBreakerListener listener = new CircuitBreakerListener() {
+        public void stateChanged(CircuitState from, CircuitState to) {
+            transitions.add(to);
+        }
+    };
+
+    private C2DMServerStub server;
+    private C2DMService service;
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void opensAtFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 4, 60000, 1, false, listener);
+
+        breaker.record(C2DMResponse.SERVER_UNAVAILABLE);
+        breaker.record(C2DMResponse.SUCCESSFUL);
+        breaker.record(C2DMResponse.NOT_REGISTERED);
+        assertEquals(CircuitState.CLOSED, breaker.getCircuitState());
+
+        breaker.record(C2DMResponse.UNKNOWN_ERROR);
+        assertEquals(CircuitState.OPEN, breaker.getCircuitState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1, breaker.getCircuitOpenedCount());
+    }
+
+    @Test
+    public void forgetsOutcomesOutsideTheWindow() {
+        CircuitBreaker breaker = new CircuitBreaker(0.75, 4, 4, 60000, 1, false, listener);
+
+        breaker.record(true);
+        breaker.record(true);
+        breaker.record(false);
+        breaker.record(false);
+        breaker.record(true);
+        breaker.record(false);
+        assertEquals(CircuitState.CLOSED, breaker.getCircuitState());
+    }
+
+    @Test
+    public void halfOpensAndClosesAfterProbes() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, 1, 50, 2, false, listener);
+
+        breaker.record(true);
+        assertFalse(breaker.tryAcquire());
+        Thread.sleep(60);
+
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(CircuitState.HALF_OPEN, breaker.getCircuitState());
+
+        breaker.record(false);
+        breaker.record(false);
+        assertEquals(CircuitState.CLOSED, breaker.getCircuitState());
+        assertEquals(3, transitions.size());
+        assertEquals(CircuitState.CLOSED, transitions.get(2));
+    }
+
+    @Test
+    public void reopensOnFailedProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, 1, 50, 2, false, listener);
+
+        breaker.record(true);
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire());
+        breaker.record(true);
+
+        assertEquals(CircuitState.OPEN, breaker.getCircuitState());
+        assertEquals(2, breaker.getCircuitOpenedCount());
+    }
+
+    @Test
+    public void failsFastWhileOpen() throws Exception {
+        server = C2DMServerStub.start(4);
+        server.respondWith(503, "");
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withCircuitBreaker(0.5, 4, 4, 200, 1)
+            .withCircuitBreakerListener(listener)
+            .build();
+
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(C2DMResponse.SERVER_UNAVAILABLE,
+                service.pushAsync("registration", message).get(5, TimeUnit.SECONDS).getResponse());
+        }
+        try {
+            service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+            fail("Circuit should be open");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CircuitOpenException);
+        }
+        assertEquals(4, server.getRequestCount());
+        assertEquals(1, ((CircuitBreakerMetrics) service).getShortCircuitedCount());
+
+        server.respondWith(200, "id=0:1234");
+        Thread.sleep(250);
+        assertTrue(service.pushAsync("registration", message).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertEquals(CircuitState.CLOSED, ((CircuitBreakerMetrics) service).getCircuitState());
+    }
+
+    @Test
+    public void queueHoldsMessagesWhileOpen() throws Exception {
+        server = C2DMServerStub.start(4);
+        server.respondWith(503, "");
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .asQueued()
+            .withCircuitBreaker(1, 1, 1, 200, 1)
+            .build();
+
+        service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+        assertEquals(CircuitState.OPEN, ((CircuitBreakerMetrics) service).getCircuitState());
+
+        server.respondWith(200, "id=0:1234");
+        long start = System.nanoTime();
+        assertTrue(service.pushAsync("registration", message).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(2, server.getRequestCount());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.PoolMetrics;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+import com.notnoop.c2dm.utils.CountingDelegate;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private C2DMServerStub server;
+    private C2DMService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = C2DMServerStub.start(8);
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.stop();
+        }
+        server.stop();
+    }
+
+    private static void awaitValue(int expected, PoolMetrics metrics, boolean pending)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            int value = pending ? metrics.getPendingConnectionRequests()
+                    : metrics.getLeasedConnections();
+            if (value == expected) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail("Expected " + expected + (pending ? " pending requests" : " leased connections"));
+    }
+
+    @Test
+    public void replacesEarlierReaper() throws Exception {
+        ConnectionPool pool = new ConnectionPool(2, -1);
+        try {
+            pool.evictIdleConnections(20);
+            pool.evictIdleConnections(20);
+            Thread.sleep(100);
+
+            int reapers = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("c2dm-pool-reaper") && thread.isAlive()) {
+                    reapers++;
+                }
+            }
+            assertEquals(1, reapers);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void exposesUtilization() throws Exception {
+        CountingDelegate delegate = new CountingDelegate();
+        server.setLatency(300);
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .asPool(Executors.newFixedThreadPool(6), 4)
+            .withDelegate(delegate)
+            .build();
+        PoolMetrics metrics = (PoolMetrics) service;
+
+        assertEquals(4, metrics.getMaxConnections());
+        for (int i = 0; i < 6; i++) {
+            service.push("registration" + i, message);
+        }
+        awaitValue(4, metrics, false);
+        awaitValue(2, metrics, true);
+
+        assertTrue(delegate.await(6, 5, TimeUnit.SECONDS));
+        awaitValue(0, metrics, false);
+        assertEquals(0, metrics.getPendingConnectionRequests());
+        assertEquals(4, metrics.getAvailableConnections());
+    }
+
+    @Test
+    public void evictsIdleConnections() throws Exception {
+        CountingDelegate delegate = new CountingDelegate();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withIdleConnectionEviction(50)
+            .withDelegate(delegate)
+            .build();
+        PoolMetrics metrics = (PoolMetrics) service;
+
+        service.push("registration", message);
+        assertTrue(delegate.await(1, 5, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getEvictedConnectionCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, metrics.getEvictedConnectionCount());
+        assertEquals(0, metrics.getAvailableConnections());
+
+        // a new connection replaces the evicted one
+        service.push("registration", message);
+        assertTrue(delegate.await(1, 5, TimeUnit.SECONDS));
+        assertEquals(2, delegate.getSentCount());
+    }
+
+    @Test
+    public void prewarmsConnectionsOnStart() throws Exception {
+        CountingDelegate delegate = new CountingDelegate();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .asPool(Executors.newFixedThreadPool(4), 4)
+            .withPrewarmedConnections(8)
+            .withDelegate(delegate)
+            .build();
+        PoolMetrics metrics = (PoolMetrics) service;
+
+        assertEquals(4, metrics.getAvailableConnections());
+        assertEquals(0, server.getRequestCount());
+
+        // messages reuse the open connections
+        for (int i = 0; i < 4; i++) {
+            service.push("registration" + i, message);
+        }
+        assertTrue(delegate.await(4, 5, TimeUnit.SECONDS));
+        awaitValue(0, metrics, false);
+        assertEquals(4, metrics.getAvailableConnections());
+    }
+
+    @Test
+    public void keepAliveHonorsShorterServerTimeout() {
+        KeepAlivePolicy policy = new KeepAlivePolicy(30000);
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        assertEquals(30000, policy.getKeepAliveDuration(response, null));
+
+        response.setHeader("Keep-Alive", "timeout=5, max=100");
+        assertEquals(5000, policy.getKeepAliveDuration(response, null));
+
+        response.setHeader("Keep-Alive", "timeout=300");
+        assertEquals(30000, policy.getKeepAliveDuration(response, null));
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResponse;
+import com.notnoop.c2dm.C2DMResult;
+import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+
+import static org.junit.Assert.*;
+
+public class DeviceThrottleTest {
+
+    private DeviceThrottle throttle;
+    private final RecordingService target = new RecordingService();
+
+    private C2DMServerStub server;
+    private C2DMService service;
+
+    @After
+    public void tearDown() {
+        if (throttle != null) {
+            throttle.stop();
+        }
+        if (service != null) {
+            service.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private static PushRequest request(String registrationId, String collapseKey) {
+        return new PushRequest(registrationId, C2DM.newNotification().collapseKey(collapseKey).build(),
+                new CompletableFuture<C2DMResult>());
+    }
+
+    private DeviceThrottle newThrottle(int maxDevices, long backoff) {
+        throttle = new DeviceThrottle(maxDevices, backoff, backoff * 8, 4);
+        throttle.setTarget(target);
+        return throttle;
+    }
+
+    @Test
+    public void defersOnlyThrottledDevices() throws Exception {
+        newThrottle(100, 100);
+        assertFalse(throttle.defer(request("a", "key")));
+
+        throttle.throttle("a");
+        PushRequest deferred = request("a", "key");
+        assertTrue(throttle.defer(deferred));
+        assertFalse(throttle.defer(request("b", "key")));
+        assertEquals(1, throttle.getDeferredCount());
+
+        Thread.sleep(300);
+        assertEquals(1, target.pushed.size());
+        assertSame(deferred.getFuture(), target.pushed.get(0).getFuture());
+        assertTrue(target.pushed.get(0).isResent());
+        assertFalse(throttle.defer(request("a", "key")));
+    }
+
+    @Test
+    public void countsOnlyActiveThrottles() throws Exception {
+        newThrottle(100, 50);
+        throttle.throttle("a");
+        assertEquals(1, throttle.getThrottledCount());
+
+        // the device isn't messaged again, yet its throttle still expires
+        long deadline = System.currentTimeMillis() + 5000;
+        while (throttle.getThrottledCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, throttle.getThrottledCount());
+        assertFalse(throttle.defer(request("a", "key")));
+    }
+
+    @Test
+    public void coalescesByCollapseKey() throws Exception {
+        newThrottle(100, 100);
+        throttle.throttle("a");
+
+        PushRequest first = request("a", "key");
+        PushRequest second = request("a", "key");
+        PushRequest other = request("a", "other");
+        assertTrue(throttle.defer(first));
+        assertTrue(throttle.defer(second));
+        assertTrue(throttle.defer(other));
+        assertEquals(2, throttle.getDeferredCount());
+
+        Thread.sleep(300);
+        assertEquals(2, target.pushed.size());
+        assertSame(second.getFuture(), target.pushed.get(0).getFuture());
+
+        second.complete(C2DMResponse.SUCCESSFUL, "id");
+        assertEquals("id", first.getFuture().get(1, TimeUnit.SECONDS).getMessageId());
+    }
+
+    @Test
+    public void evictsLeastRecentlyThrottled() throws Exception {
+        newThrottle(1, 60000);
+        // a single stripe may hold one device, so collisions evict too
+        throttle.throttle("a");
+        PushRequest deferred = request("a", "key");
+        assertTrue(throttle.defer(deferred));
+
+        for (int i = 0; i < 1000; ++i) {
+            throttle.throttle("device" + i);
+        }
+
+        assertTrue(throttle.getThrottledCount() <= 16);
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean released = false;
+        while (!released && System.currentTimeMillis() < deadline) {
+            for (PushRequest request : target.pushed) {
+                released |= request.getFuture() == deferred.getFuture();
+            }
+            Thread.sleep(5);
+        }
+        assertTrue(released);
+    }
+
+    @Test
+    public void slowReleaseDoesNotDelayOtherDevices() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        throttle = new DeviceThrottle(100, 20, 20, 4);
+        throttle.setTarget(new RecordingService() {
+            @Override
+            protected void push(PushRequest request) {
+                if ("slow".equals(request.getRegistrationId())) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.push(request);
+            }
+        });
+        try {
+            throttle.throttle("slow");
+            assertTrue(throttle.defer(request("slow", "key")));
+            Thread.sleep(5);
+            throttle.throttle("fast");
+            assertTrue(throttle.defer(request("fast", "key")));
+
+            // fast is released while the release of slow still blocks
+            long deadline = System.currentTimeMillis() + 5000;
+            while (throttle.getDeferredCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, throttle.getDeferredCount());
+            assertEquals(0, throttle.getThrottledCount());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void backsOffOnlyTheChattyDevice() throws Exception {
+        server = C2DMServerStub.start(4);
+        server.respondNext(200, "Error=DeviceQuotaExceeded");
+        C2DMNotification message = C2DM.newNotification().collapseKey("key").build();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withDeviceThrottle(100, 300, 1000)
+            .withRetries(2, 10, 10)
+            .build();
+
+        long start = System.nanoTime();
+        CompletableFuture<C2DMResult> chatty = service.pushAsync("chatty", message);
+        assertTrue(service.pushAsync("quiet", message).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertFalse(chatty.isDone());
+
+        assertTrue(chatty.get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    static class RecordingService extends AbstractC2DMService {
+        final List<PushRequest> pushed = new CopyOnWriteArrayList<PushRequest>();
+
+        RecordingService() {
+            super("http://localhost/", "token");
+        }
+
+        @Override
+        protected void push(PushRequest request) {
+            pushed.add(request);
+        }
+    }
+}
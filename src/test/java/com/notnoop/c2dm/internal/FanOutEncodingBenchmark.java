@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMNotificationBuilder;
+
+/**
+ * Measures encoding the body of a single notification broadcast to many
+ * registration ids, as when fanning out a message, for payloads of
+ * different sizes.
+ *
+ * Run with:
+ * <pre>
+ *   mvn test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main FanOutEncodingBenchmark" \
+ *       -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutEncodingBenchmark {
+
+    @Param({"1", "8"})
+    public int dataFields;
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    private C2DMNotification message;
+    private String[] registrationIds;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        C2DMNotificationBuilder builder = C2DM.newNotification()
+            .collapseKey("breaking-news")
+            .delayWhileIdle(true);
+        for (int i = 0; i < dataFields; ++i) {
+            builder.data("field" + i, "Breaking news: something happened, read all about it (" + i + ")");
+        }
+        message = builder.build();
+
+        registrationIds = new String[1024];
+        for (int i = 0; i < registrationIds.length; ++i) {
+            registrationIds[i] = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx4vH2yj3qbcBjo_L8cBSnq7_9eyMgTrJCdH4VJaOsF" + i;
+        }
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        String registrationId = registrationIds[next++ & (registrationIds.length - 1)];
+        NotificationEntity entity = new NotificationEntity(registrationId, message);
+        long length = entity.getContentLength();
+        entity.writeTo(sink);
+        return length;
+    }
+}
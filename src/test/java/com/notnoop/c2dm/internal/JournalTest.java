@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final C2DMNotification message = C2DM.newNotification()
+        .collapseKey("key").delayWhileIdle(true)
+        .data("text", "héllo 世界 😀").data("empty", "")
+        .build();
+
+    private static List<String> idsOf(List<Journal.Record> records) {
+        List<String> ids = new ArrayList<String>();
+        for (Journal.Record record : records) {
+            ids.add(record.getRegistrationId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void recoversUnacknowledgedRecords() throws Exception {
+        File directory = folder.newFolder("journal");
+        Journal journal = new Journal(directory, 4096, 10);
+        journal.append("a", message);
+        long b = journal.append("b", message);
+        journal.append("c", message);
+        journal.acknowledge(b);
+        journal.close();
+
+        journal = new Journal(directory, 4096, 10);
+        List<Journal.Record> records = journal.recovered();
+        assertEquals(2, journal.getPendingCount());
+        assertEquals(List.of("a", "c"), idsOf(records));
+
+        C2DMNotification recovered = records.get(1).getMessage();
+        assertEquals("key", recovered.getCollapseKey());
+        assertTrue(recovered.isDelayWhileIdle());
+        List<Entry<String, String>> data = new ArrayList<Entry<String, String>>(recovered.getData());
+        assertEquals("data.text", data.get(0).getKey());
+        assertEquals("héllo 世界 😀", data.get(0).getValue());
+        assertEquals("", data.get(1).getValue());
+        assertArrayEquals(NotificationEntity.encodedParameters(message),
+                NotificationEntity.encodedParameters(recovered));
+
+        assertTrue(journal.recovered().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void deletesAcknowledgedSegments() throws Exception {
+        File directory = folder.newFolder("journal");
+        Journal journal = new Journal(directory, 4096, 10);
+        List<Long> offsets = new ArrayList<Long>();
+        for (int i = 0; i < 200; ++i) {
+            offsets.add(journal.append("registration" + i, message));
+        }
+        assertTrue(journal.getSegmentCount() > 2);
+
+        for (int i = 0; i < 190; ++i) {
+            journal.acknowledge(offsets.get(i));
+        }
+        assertTrue(journal.getSegmentCount() <= 2);
+        journal.close();
+
+        journal = new Journal(directory, 4096, 10);
+        List<Journal.Record> records = journal.recovered();
+        assertEquals(10, records.size());
+        assertEquals("registration190", records.get(0).getRegistrationId());
+
+        // offsets keep growing across restarts
+        assertTrue(journal.append("next", message) > offsets.get(199));
+        journal.close();
+    }
+
+    @Test
+    public void stopsRecoveryAtTornRecord() throws Exception {
+        File directory = folder.newFolder("journal");
+        Journal journal = new Journal(directory, 4096, 10);
+        journal.append("a", message);
+        long b = journal.append("b", message);
+        journal.close();
+
+        // corrupt the payload of the last record, as a crash mid-write would
+        RandomAccessFile file = new RandomAccessFile(
+                new File(directory, "00000000000000000000.journal"), "rw");
+        file.seek(b + 12);
+        file.write(file.read() ^ 0xFF);
+        file.close();
+
+        journal = new Journal(directory, 4096, 10);
+        assertEquals(List.of("a"), idsOf(journal.recovered()));
+        journal.close();
+    }
+}
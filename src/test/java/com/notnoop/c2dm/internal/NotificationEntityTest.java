@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMNotificationBuilder;
+
+import static org.junit.Assert.*;
+
+public class NotificationEntityTest {
+
+    private static void assertEncodedLikeForm(String registrationId, C2DMNotification notification)
+            throws Exception {
+        HttpEntity expected = new UrlEncodedFormEntity(
+                Utilities.requestBodyOf(registrationId, notification), "UTF-8");
+        NotificationEntity actual = new NotificationEntity(registrationId, notification);
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        actual.writeTo(written);
+
+        String body = EntityUtils.toString(expected);
+        assertEquals(body, written.toString("US-ASCII"));
+        assertEquals(body, EntityUtils.toString(actual));
+        assertEquals(expected.getContentLength(), actual.getContentLength());
+        assertEquals(expected.getContentType().getValue(), actual.getContentType().getValue());
+    }
+
+    @Test
+    public void encodesPlainMessage() throws Exception {
+        assertEncodedLikeForm("APA91bH-abc_123",
+            C2DM.newNotification().collapseKey("key").build());
+    }
+
+    @Test
+    public void encodesAllFields() throws Exception {
+        assertEncodedLikeForm("registration id",
+            C2DM.newNotification()
+                .collapseKey("a&b=c")
+                .delayWhileIdle(true)
+                .data("text", "Hello, World! 100% *sure* ~ok~")
+                .data("path", "/a/b?c=d#e")
+                .build());
+    }
+
+    @Test
+    public void encodesUnicode() throws Exception {
+        assertEncodedLikeForm("id",
+            C2DM.newNotification()
+                .collapseKey("été")
+                .data("text", "שלום 你好 😀")
+                .data("broken", "a\ud83db")
+                .build());
+    }
+
+    @Test
+    public void encodesMissingValuesAsEmpty() throws Exception {
+        assertEncodedLikeForm(null, C2DM.newNotification().collapseKey("").build());
+    }
+
+    @Test
+    public void encodesParametersOnce() throws Exception {
+        C2DMNotificationBuilder builder = C2DM.newNotification().collapseKey("key").data("a", "1");
+        C2DMNotification notification = builder.build();
+        builder.data("b", "2");
+
+        byte[] parameters = NotificationEntity.encodedParameters(notification);
+        assertSame(parameters, NotificationEntity.encodedParameters(notification));
+        assertEquals("&collapse_key=key&data.a=1", new String(parameters, "US-ASCII"));
+        assertEncodedLikeForm("first", notification);
+        assertEncodedLikeForm("second", notification);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.C2DMServiceBuilder;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+
+/**
+ * Compares the pooled service on platform threads with the pooled service
+ * on virtual threads, each sending a burst of concurrent notifications
+ * against a local stub endpoint.
+ *
+ * The platform pool gets one thread per concurrent send, while the
+ * virtual thread pool spawns a virtual thread per send and caps the
+ * requests in flight.  Both share the same number of connections.
+ * The score is the time to complete a burst of {@code concurrency} sends.
+ *
+ * Run with:
+ * <pre>
+ *   mvn test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main PooledThreadsBenchmark" \
+ *       -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class PooledThreadsBenchmark {
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"1000", "10000"})
+    public int concurrency;
+
+    @Param({"1000"})
+    public int connections;
+
+    /** Emulated round trip to the Google servers, in millis */
+    @Param({"50"})
+    public long latency;
+
+    private C2DMServerStub server;
+    private C2DMService service;
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("benchmark").data("key", "value").build();
+    private String[] registrationIds;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = C2DMServerStub.start();
+        server.setLatency(latency);
+
+        C2DMServiceBuilder builder = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri());
+        if ("virtual".equals(threads)) {
+            builder.asVirtualThreadPool(connections);
+        } else {
+            builder.asPool(Executors.newFixedThreadPool(concurrency), connections);
+        }
+        service = builder.build();
+
+        registrationIds = new String[concurrency];
+        for (int i = 0; i < concurrency; ++i) {
+            registrationIds[i] = "registration-" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    public void burst() throws Exception {
+        CompletableFuture<?>[] results = new CompletableFuture<?>[registrationIds.length];
+        for (int i = 0; i < registrationIds.length; ++i) {
+            results[i] = service.pushAsync(registrationIds[i], message);
+        }
+        CompletableFuture.allOf(results).get(1, TimeUnit.MINUTES);
+    }
+}
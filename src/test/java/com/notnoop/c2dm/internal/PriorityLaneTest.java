@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.Priority;
+
+import static org.junit.Assert.*;
+
+public class PriorityLaneTest {
+
+    private final PriorityLane lane = new PriorityLane(1000);
+
+    private void add(Priority priority, int count) {
+        for (int i = 0; i < count; ++i) {
+            PushRequest request = new PushRequest(priority.name() + i,
+                    C2DM.newNotification().collapseKey("key").priority(priority).build());
+            request.setQueuedAt(System.nanoTime());
+            assertTrue(lane.queueOf(priority).offer(request));
+            lane.added();
+        }
+    }
+
+    private Map<Priority, Integer> take(int count) throws InterruptedException {
+        Map<Priority, Integer> taken = new EnumMap<Priority, Integer>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            taken.put(priority, 0);
+        }
+        for (int i = 0; i < count; ++i) {
+            Priority priority = lane.take().getMessage().getPriority();
+            taken.put(priority, taken.get(priority) + 1);
+        }
+        return taken;
+    }
+
+    @Test
+    public void sharesByWeightUnderBacklog() throws Exception {
+        lane.setWeights(new int[] { 16, 4, 1 });
+        add(Priority.HIGH, 500);
+        add(Priority.NORMAL, 500);
+        add(Priority.LOW, 500);
+
+        Map<Priority, Integer> taken = take(210);
+        assertEquals(160, (int) taken.get(Priority.HIGH));
+        assertEquals(40, (int) taken.get(Priority.NORMAL));
+        assertEquals(10, (int) taken.get(Priority.LOW));
+    }
+
+    @Test
+    public void boundsLatencyBehindBacklog() throws Exception {
+        lane.setWeights(new int[] { 16, 4, 1 });
+        add(Priority.LOW, 500);
+        take(100);
+
+        // an idle priority starts afresh, and outweighs the backlog at once
+        add(Priority.HIGH, 1);
+        assertEquals(Priority.HIGH, lane.take().getMessage().getPriority());
+        assertEquals(1, lane.getTakenCount(Priority.HIGH));
+        assertEquals(100, lane.getTakenCount(Priority.LOW));
+    }
+
+    @Test
+    public void lowPriorityIsNotStarved() throws Exception {
+        lane.setWeights(new int[] { 16, 4, 1 });
+        add(Priority.LOW, 1);
+        add(Priority.HIGH, 500);
+
+        Map<Priority, Integer> taken = take(17);
+        assertEquals(1, (int) taken.get(Priority.LOW));
+    }
+
+    @Test
+    public void skipsPermitsOfRemovedMessages() throws Exception {
+        add(Priority.NORMAL, 2);
+        assertNotNull(lane.queueOf(Priority.NORMAL).poll());
+        lane.removed();
+
+        assertNotNull(lane.poll());
+        assertNull(lane.poll());
+        assertEquals(0, lane.size());
+    }
+}
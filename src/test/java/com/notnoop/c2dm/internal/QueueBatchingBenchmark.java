@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.OverflowPolicy;
+
+/**
+ * Measures the sustained throughput of the queue of C2DMQueuedService
+ * with different batch sizes, when draining to a no-op service.
+ *
+ * Four producers push into a bounded blocking queue, so the measured rate
+ * is bounded by how fast the drain thread empties the queue.
+ *
+ * Run with:
+ * <pre>
+ *   mvn test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main QueueBatchingBenchmark" \
+ *       -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class QueueBatchingBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int batchSize;
+
+    private C2DMQueuedService service;
+    private PushRequest request;
+
+    @Setup
+    public void setUp() {
+        C2DMNotification message = C2DM.newNotification().collapseKey("benchmark").build();
+        service = new C2DMQueuedService(new NoopService(), "http://localhost/", "token",
+                1024, OverflowPolicy.BLOCK, -1, 1, batchSize, 0);
+        service.start();
+
+        request = new PushRequest("registration", message);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.stop();
+    }
+
+    @Benchmark
+    public void push() {
+        service.push(request);
+    }
+
+    static class NoopService extends AbstractC2DMService {
+        final AtomicLong sent = new AtomicLong();
+
+        NoopService() {
+            super("http://localhost/", "token");
+        }
+
+        @Override
+        protected void push(PushRequest request) {
+            sent.incrementAndGet();
+        }
+
+        @Override
+        protected void push(List<PushRequest> batch) {
+            sent.addAndGet(batch.size());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.OverflowPolicy;
+
+/**
+ * Measures the heap retained by each message waiting in the queue of
+ * C2DMQueuedService, for a backlog of 100,000 messages to distinct devices
+ * behind a stalled drain thread.
+ *
+ * Messages either share a notification, as broadcasts do, or each carry
+ * their own, and are held either as objects or in compact binary form.  The retained heap is reported as the {@code bytesPerMessage}
+ * counter.
+ *
+ * Run with:
+ * <pre>
+ *   mvn test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main QueueFootprintBenchmark" \
+ *       -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g", "-XX:+UseSerialGC"})
+public class QueueFootprintBenchmark {
+    private static final int MESSAGES = 100000;
+    private static final String PREFIX =
+        "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx8kxV2rV8fK3PtXzFWb9Tq0MHc5qEoOJHD7JnJgBtqUtTWr3s1pJgTeHn";
+
+    @Param({"true", "false"})
+    public boolean sharedMessage;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private final C2DMNotification shared = C2DM.newNotification()
+        .collapseKey("benchmark").data("message", "You have 3 new messages").build();
+
+    private C2DMQueuedService service;
+    private StalledService inner;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long bytesPerMessage;
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws InterruptedException {
+        inner = new StalledService();
+        service = new C2DMQueuedService(inner, "http://localhost/", "token",
+                Integer.MAX_VALUE, OverflowPolicy.BLOCK, -1, 1, 1, 0);
+        service.setCompact(compact);
+        service.start();
+        service.push("stall", shared);
+        inner.entered.await();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        inner.release.countDown();
+        service.stop();
+    }
+
+    @Benchmark
+    public int fill(Footprint footprint) {
+        long before = usedHeap();
+        for (int i = 0; i < MESSAGES; ++i) {
+            C2DMNotification message = sharedMessage ? shared : C2DM.newNotification()
+                .collapseKey("benchmark").data("message", "You have " + i + " new messages").build();
+            service.push(PREFIX + i, message);
+        }
+        footprint.bytesPerMessage = (usedHeap() - before) / MESSAGES;
+        return service.getQueueDepth();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static class StalledService extends AbstractC2DMService {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        StalledService() {
+            super("http://localhost/", "token");
+        }
+
+        @Override
+        protected void push(PushRequest request) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
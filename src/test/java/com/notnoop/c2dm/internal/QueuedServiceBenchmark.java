@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+import com.notnoop.c2dm.utils.CountingDelegate;
+
+/**
+ * Measures the throughput of the queued service against a local stub
+ * endpoint with different numbers of drain threads.
+ *
+ * Run with:
+ * <pre>
+ *   mvn test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main QueuedServiceBenchmark" \
+ *       -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueuedServiceBenchmark {
+    private static final int MESSAGES = 1000;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    /** Emulated round trip to the Google servers, in millis */
+    @Param({"1"})
+    public long latency;
+
+    private C2DMServerStub server;
+    private C2DMService service;
+    private CountingDelegate delegate;
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("benchmark").data("key", "value").build();
+    private final String[] registrationIds = new String[MESSAGES];
+
+    @Setup
+    public void setUp() throws IOException {
+        server = C2DMServerStub.start(32);
+        server.setLatency(latency);
+
+        delegate = new CountingDelegate();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withDelegate(delegate)
+            .asQueued()
+            .withQueueThreads(threads)
+            .build();
+
+        for (int i = 0; i < MESSAGES; ++i) {
+            registrationIds[i] = "registration-" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void push() throws InterruptedException {
+        for (String registrationId : registrationIds) {
+            service.push(registrationId, message);
+        }
+        if (!delegate.await(MESSAGES, 1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Messages didn't complete in time");
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMResponse;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    private static PushRequest request(String collapseKey) {
+        return new PushRequest("registration",
+                C2DM.newNotification().collapseKey(collapseKey).build());
+    }
+
+    private static long millisToAcquire(RateLimiter limiter, PushRequest request, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            limiter.acquire(request);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void smoothsToRate() {
+        RateLimiter limiter = new RateLimiter(100, 1, -1, 1);
+
+        long elapsed = millisToAcquire(limiter, request("key"), 21);
+        assertTrue("took " + elapsed, elapsed >= 190 && elapsed < 1000);
+    }
+
+    @Test
+    public void allowsBurst() {
+        RateLimiter limiter = new RateLimiter(10, 20, -1, 1);
+
+        long elapsed = millisToAcquire(limiter, request("key"), 20);
+        assertTrue("took " + elapsed, elapsed < 90);
+    }
+
+    @Test
+    public void limitsEachCollapseKey() {
+        RateLimiter limiter = new RateLimiter(-1, 1, 10, 1);
+
+        long start = System.nanoTime();
+        limiter.acquire(request("a"));
+        limiter.acquire(request("b"));
+        limiter.acquire(request("c"));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(90));
+
+        long elapsed = millisToAcquire(limiter, request("a"), 1);
+        assertTrue("took " + elapsed, elapsed >= 90);
+    }
+
+    @Test
+    public void evictsIdleCollapseKeys() throws Exception {
+        RateLimiter limiter = new RateLimiter(-1, 1, 1000, 1);
+
+        for (int i = 0; i < 10000; ++i) {
+            limiter.acquire(request("key" + i));
+            if (i % 1000 == 0) {
+                Thread.sleep(2);
+            }
+        }
+        assertTrue("tracks " + limiter.keyCount(), limiter.keyCount() < 5000);
+
+        // still limited after sweeps
+        long elapsed = millisToAcquire(limiter, request("key9999"), 3);
+        assertTrue("took " + elapsed, elapsed >= 1);
+    }
+
+    @Test
+    public void shrinksOnQuotaExceeded() {
+        RateLimiter limiter = new RateLimiter(1000, 1, -1, 1);
+        assertEquals(1000, limiter.getRate(), 1);
+
+        limiter.record(C2DMResponse.QUOTA_EXCEEDED);
+        assertEquals(500, limiter.getRate(), 1);
+
+        // responses of messages in flight don't shrink it further
+        limiter.record(C2DMResponse.QUOTA_EXCEEDED);
+        limiter.record(C2DMResponse.DEVICE_QUOTA_EXCEEDED);
+        assertEquals(500, limiter.getRate(), 1);
+    }
+
+    @Test
+    public void unlimitedByDefault() {
+        RateLimiter limiter = new RateLimiter(-1, 1, -1, 1);
+        limiter.record(C2DMResponse.QUOTA_EXCEEDED);
+
+        assertEquals(Double.POSITIVE_INFINITY, limiter.getRate(), 0);
+        assertTrue(millisToAcquire(limiter, request("key"), 1000) < 90);
+    }
+}
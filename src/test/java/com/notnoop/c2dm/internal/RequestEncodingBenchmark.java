@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+
+/**
+ * Measures the cost of preparing and writing out the request of a
+ * message, comparing the name-value pair form entity with the streaming
+ * notification entity.  Run with the GC profiler to compare allocations,
+ * i.e. {@code gc.alloc.rate.norm}.
+ *
+ * Run with:
+ * <pre>
+ *   mvn test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main RequestEncodingBenchmark -prof gc" \
+ *       -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestEncodingBenchmark {
+    private static final String URI = "https://android.apis.google.com/c2dm/send";
+    private static final String REGISTRATION_ID =
+        "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx4vH2yj3qbcBjo_L8cBSnq7_9eyMgTrJCdH4VJaOsFPCWGd0ExaZ2ubJl7TxuHr0v";
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    private C2DMNotification message;
+    private AbstractC2DMService service;
+
+    @Setup
+    public void setUp() {
+        message = C2DM.newNotification()
+            .collapseKey("score")
+            .delayWhileIdle(true)
+            .data("team", "Red Sox")
+            .data("score", "4 - 3 (9th inning)")
+            .build();
+        service = new QueueBatchingBenchmark.NoopService();
+    }
+
+    @Benchmark
+    public void formEntity(Blackhole bh) throws IOException {
+        HttpPost method = new HttpPost(URI);
+        method.setEntity(new UrlEncodedFormEntity(
+                Utilities.requestBodyOf(REGISTRATION_ID, message), "UTF-8"));
+        method.addHeader("Authorization", "GoogleLogin auth=" + "token");
+
+        bh.consume(method.getEntity().getContentLength());
+        method.getEntity().writeTo(sink);
+        bh.consume(method);
+    }
+
+    @Benchmark
+    public void notificationEntity(Blackhole bh) throws IOException {
+        HttpPost method = service.postMessage(REGISTRATION_ID, message);
+
+        bh.consume(method.getEntity().getContentLength());
+        method.getEntity().writeTo(sink);
+        bh.consume(method);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DMResponse;
+
+import static org.junit.Assert.*;
+
+public class ResponseParserTest {
+
+    private final ResponseParser parser = new ResponseParser();
+
+    private C2DMResponse parse(int status, String body) throws Exception {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+        if (body != null) {
+            response.setEntity(new StringEntity(body, "US-ASCII"));
+        }
+        return parser.parse(response);
+    }
+
+    @Test
+    public void parsesMessageId() throws Exception {
+        assertEquals(C2DMResponse.SUCCESSFUL, parse(200, "id=0:1234%7Babcdef\n"));
+        assertEquals("0:1234{abcdef", parser.getMessageId());
+    }
+
+    @Test
+    public void parsesEveryErrorCode() throws Exception {
+        for (C2DMResponse response : C2DMResponse.values()) {
+            if (response.getKey() != null) {
+                assertEquals(response, parse(200, "Error=" + response.getKey()));
+                assertNull(parser.getMessageId());
+            }
+        }
+    }
+
+    @Test
+    public void mapsStatusCodes() throws Exception {
+        assertEquals(C2DMResponse.SERVER_UNAVAILABLE, parse(503, "whatever"));
+        assertEquals(C2DMResponse.INVALID_AUTHENTICATION, parse(401, null));
+        assertEquals(C2DMResponse.UNKNOWN_ERROR, parse(500, ""));
+    }
+
+    @Test
+    public void toleratesMalformedBodies() throws Exception {
+        assertEquals(C2DMResponse.UNKNOWN_ERROR, parse(200, null));
+        assertEquals(C2DMResponse.UNKNOWN_ERROR, parse(200, ""));
+        assertEquals(C2DMResponse.UNKNOWN_ERROR, parse(200, "garbage"));
+        assertEquals(C2DMResponse.UNKNOWN_ERROR, parse(200, "Error=SomethingNew"));
+        assertEquals(C2DMResponse.UNKNOWN_ERROR, parse(200, "Error=QuotaExceede"));
+        assertEquals(C2DMResponse.NOT_REGISTERED, parse(200, " Error = NotRegistered &more=1"));
+    }
+
+    @Test
+    public void capsLongBodies() throws Exception {
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            id.append('x');
+        }
+        assertEquals(C2DMResponse.SUCCESSFUL, parse(200, "id=" + id));
+        assertEquals(id.toString(), parser.getMessageId());
+
+        for (int i = 0; i < ResponseParser.MAX_BODY; ++i) {
+            id.append('x');
+        }
+        assertEquals(C2DMResponse.UNKNOWN_ERROR, parse(200, "id=" + id));
+        assertNull(parser.getMessageId());
+        assertEquals(C2DMResponse.NOT_REGISTERED, parse(200, "Error=NotRegistered&more=" + id));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.*;
+
+import com.notnoop.c2dm.C2DMResponse;
+
+/**
+ * Measures parsing the responses of Google servers, comparing the former
+ * string and name-value pair based parsing with the byte-level parser.
+ * Run with the GC profiler to compare allocations, i.e.
+ * {@code gc.alloc.rate.norm}.
+ *
+ * Run with:
+ * <pre>
+ *   mvn test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main ResponseParsingBenchmark -prof gc" \
+ *       -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    @Param({"id=0:1234%7Babcdef", "Error=MissingCollapseKey"})
+    public String body;
+
+    private HttpResponse response;
+
+    @Setup
+    public void setUp() {
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new RewindingEntity(body.getBytes()));
+    }
+
+    @Benchmark
+    public C2DMResponse formParser() throws IOException {
+        List<NameValuePair> pairs = new ArrayList<NameValuePair>();
+        String content = EntityUtils.toString(response.getEntity(), HTTP.ASCII);
+        URLEncodedUtils.parse(pairs, new Scanner(content), "UTF-8");
+
+        NameValuePair entry = pairs.get(0);
+        if ("id".equals(entry.getName())) {
+            return C2DMResponse.SUCCESSFUL;
+        }
+        for (C2DMResponse r : C2DMResponse.values()) {
+            if (entry.getValue().equals(r.getKey())) {
+                return r;
+            }
+        }
+        return C2DMResponse.UNKNOWN_ERROR;
+    }
+
+    @Benchmark
+    public C2DMResponse responseParser() throws IOException {
+        return new ResponseParser().parse(response);
+    }
+
+    /**
+     * An entity whose content is read from the start each time, without
+     * allocating, so that only the parsing is measured.
+     */
+    static class RewindingEntity extends AbstractHttpEntity {
+        private final byte[] content;
+        private final ByteArrayInputStream stream;
+
+        RewindingEntity(byte[] content) {
+            this.content = content;
+            this.stream = new ByteArrayInputStream(content);
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public long getContentLength() {
+            return content.length;
+        }
+
+        public InputStream getContent() {
+            stream.reset();
+            return stream;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(content);
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
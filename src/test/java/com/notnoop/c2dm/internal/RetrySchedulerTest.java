@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResponse;
+import com.notnoop.c2dm.C2DMResult;
+import com.notnoop.c2dm.C2DMService;
+import com.notnoop.c2dm.utils.C2DMServerStub;
+import com.notnoop.c2dm.utils.CountingDelegate;
+
+import static org.junit.Assert.*;
+
+public class RetrySchedulerTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private C2DMServerStub server;
+    private C2DMService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = C2DMServerStub.start(4);
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.stop();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void backoffGrowsWithJitter() {
+        RetryScheduler scheduler = new RetryScheduler(10, 100, 1000);
+        try {
+            for (int i = 0; i < 100; ++i) {
+                assertInRange(scheduler.delayFor(1, 0), 50, 100);
+                assertInRange(scheduler.delayFor(2, 0), 100, 200);
+                assertInRange(scheduler.delayFor(3, 0), 200, 400);
+                assertInRange(scheduler.delayFor(9, 0), 500, 1000);
+                assertInRange(scheduler.delayFor(100, 0), 500, 1000);
+                assertInRange(scheduler.delayFor(1, 5000), 5000, 5050);
+            }
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    private static void assertInRange(long value, long min, long max) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", min <= value && value <= max);
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Unavailable");
+        assertEquals(0, RetryScheduler.retryAfter(response));
+
+        response.setHeader("Retry-After", "120");
+        assertEquals(120000, RetryScheduler.retryAfter(response));
+
+        response.setHeader("Retry-After", "Fri, 31 Dec 1999 23:59:59 GMT");
+        assertEquals(0, RetryScheduler.retryAfter(response));
+    }
+
+    @Test
+    public void slowRetryDoesNotDelayOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sent = new CopyOnWriteArrayList<String>();
+        AbstractC2DMService target = new AbstractC2DMService("http://localhost/", "token") {
+            @Override
+            protected void push(PushRequest request) {
+                if ("slow".equals(request.getRegistrationId())) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                sent.add(request.getRegistrationId());
+            }
+        };
+        RetryScheduler scheduler = new RetryScheduler(3, 2, 2);
+        scheduler.setTarget(target);
+        try {
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Unavailable");
+            assertTrue(scheduler.retry(new PushRequest("slow", message), response));
+            Thread.sleep(20);
+            assertTrue(scheduler.retry(new PushRequest("fast", message), response));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sent.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals("fast", sent.get(0));
+        } finally {
+            release.countDown();
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void retriesUntilSuccessful() throws Exception {
+        server.respondNext(503, "");
+        server.respondNext(200, "Error=QuotaExceeded");
+        CountingDelegate delegate = new CountingDelegate();
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withDelegate(delegate)
+            .withRetries(3, 10, 50)
+            .build();
+
+        C2DMResult result = service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(3, server.getRequestCount());
+        assertTrue(delegate.await(1, 1, TimeUnit.SECONDS));
+        assertEquals(1, delegate.getSentCount());
+        assertEquals(0, delegate.getFailedCount());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        server.respondWith(503, "");
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .asQueued()
+            .withRetries(3, 10, 50)
+            .build();
+
+        C2DMResult result = service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+
+        assertEquals(C2DMResponse.SERVER_UNAVAILABLE, result.getResponse());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void doesNotRetryPermanentFailures() throws Exception {
+        server.respondWith(200, "Error=NotRegistered");
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withRetries(3, 10, 50)
+            .build();
+
+        C2DMResult result = service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+
+        assertEquals(C2DMResponse.NOT_REGISTERED, result.getResponse());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void honorsRetryAfter() throws Exception {
+        server.respondNext(503, "", "Retry-After", "1");
+        service = C2DM.newService()
+            .withAuthToken("token")
+            .withServiceUri(server.getServiceUri())
+            .withRetries(2, 10, 50)
+            .build();
+
+        long start = System.nanoTime();
+        C2DMResult result = service.pushAsync("registration", message).get(5, TimeUnit.SECONDS);
+
+        assertTrue(result.isSuccessful());
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+    }
+}
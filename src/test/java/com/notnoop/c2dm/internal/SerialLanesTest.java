@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+
+import static org.junit.Assert.*;
+
+public class SerialLanesTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static PushRequest request(String registrationId, int sequence) {
+        // the collapse key tells the messages apart
+        C2DMNotification message = C2DM.newNotification()
+            .collapseKey(String.valueOf(sequence)).build();
+        return new PushRequest(registrationId, message);
+    }
+
+    @Test
+    public void sendsEachDeviceInOrder() throws Exception {
+        final int devices = 50, messages = 200;
+        final Map<String, List<String>> sent = new ConcurrentHashMap<String, List<String>>();
+        final Map<String, AtomicInteger> active = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(devices * messages);
+        for (int d = 0; d < devices; d++) {
+            sent.put("device" + d, new ArrayList<String>());
+            active.put("device" + d, new AtomicInteger());
+        }
+
+        SerialLanes lanes = new SerialLanes(executor, 16) {
+            protected void send(PushRequest request) {
+                String device = request.getRegistrationId();
+                if (active.get(device).incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                // lanes never send to a device concurrently, so no locking
+                sent.get(device).add(request.getMessage().getCollapseKey());
+                active.get(device).decrementAndGet();
+                done.countDown();
+            }
+        };
+
+        for (int i = 0; i < messages; i++) {
+            for (int d = 0; d < devices; d++) {
+                lanes.submit(request("device" + d, i));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (List<String> sequence : sent.values()) {
+            assertEquals(messages, sequence.size());
+            for (int i = 0; i < messages; i++) {
+                assertEquals(String.valueOf(i), sequence.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void sendsDevicesConcurrently() throws Exception {
+        final CountDownLatch bothSending = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(2);
+        SerialLanes lanes = new SerialLanes(executor, 1024) {
+            protected void send(PushRequest request) {
+                bothSending.countDown();
+                try {
+                    if (bothSending.await(5, TimeUnit.SECONDS)) {
+                        done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        lanes.submit(request("a", 0));
+        lanes.submit(request("b", 0));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void discardsRequestsOfRejectedLanes() throws Exception {
+        // accepts the first task without running it, then rejects
+        final List<Runnable> accepted = new ArrayList<Runnable>();
+        Executor rejecting = new Executor() {
+            public void execute(Runnable task) {
+                if (!accepted.isEmpty()) {
+                    throw new RejectedExecutionException();
+                }
+                accepted.add(task);
+            }
+        };
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger discarded = new AtomicInteger();
+        SerialLanes lanes = new SerialLanes(rejecting, 1) {
+            protected void send(PushRequest request) {
+                sent.incrementAndGet();
+            }
+
+            protected void discard(PushRequest request, RejectedExecutionException cause) {
+                discarded.incrementAndGet();
+            }
+        };
+
+        for (int i = 0; i < 70; i++) {
+            lanes.submit(request("a", i));
+        }
+        // sends a batch, then fails to reschedule the lane for the rest
+        accepted.get(0).run();
+        assertEquals(64, sent.get());
+        assertEquals(6, discarded.get());
+    }
+
+    @Test
+    public void roundsLanesToPowerOfTwo() {
+        assertEquals(1, new SerialLanes(executor, 1) {
+            protected void send(PushRequest request) {}
+        }.getLaneCount());
+        assertEquals(16, new SerialLanes(executor, 12) {
+            protected void send(PushRequest request) {}
+        }.getLaneCount());
+        assertEquals(16, new SerialLanes(executor, 16) {
+            protected void send(PushRequest request) {}
+        }.getLaneCount());
+    }
+}
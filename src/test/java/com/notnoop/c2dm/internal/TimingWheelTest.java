@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.internal;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.notnoop.c2dm.C2DM;
+import com.notnoop.c2dm.C2DMNotification;
+import com.notnoop.c2dm.C2DMResponse;
+import com.notnoop.c2dm.C2DMResult;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private final C2DMNotification message =
+        C2DM.newNotification().collapseKey("key").build();
+
+    private final RecordingService target = new RecordingService();
+    private TimingWheel wheel;
+
+    @After
+    public void tearDown() {
+        if (wheel != null) {
+            wheel.stop();
+        }
+    }
+
+    private void await(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (target.count.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void sendsInDueOrderAcrossLevels() throws Exception {
+        wheel = new TimingWheel(target, 1);
+        long now = System.currentTimeMillis();
+        // beyond the first level turn of 64 ticks, and the second of 4096
+        wheel.schedule(new PushRequest("c", message), now + 300);
+        wheel.schedule(new PushRequest("d", message), now + 4200);
+        wheel.schedule(new PushRequest("a", message), now + 5);
+        wheel.schedule(new PushRequest("b", message), now + 80);
+        assertEquals(4, wheel.getPendingCount());
+
+        await(4);
+        assertEquals(4, target.pushed.size());
+        String[] expected = { "a", "b", "c", "d" };
+        long[] sendTimes = { now + 5, now + 80, now + 300, now + 4200 };
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], target.pushed.get(i).getRegistrationId());
+            // clocks may disagree by a millisecond
+            assertTrue(target.sentAt.get(i) >= sendTimes[i] - 1);
+        }
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void sendsPastDueRightAway() throws Exception {
+        wheel = new TimingWheel(target, 10);
+        wheel.schedule(new PushRequest("a", message), System.currentTimeMillis() - 1000);
+        await(1);
+        assertEquals(1, target.pushed.size());
+    }
+
+    @Test
+    public void skipsCancelledMessages() throws Exception {
+        wheel = new TimingWheel(target, 1);
+        CompletableFuture<C2DMResult> future = new CompletableFuture<C2DMResult>();
+        long now = System.currentTimeMillis();
+        wheel.schedule(new PushRequest("cancelled", message, future), now + 20);
+        wheel.schedule(new PushRequest("sent", message), now + 40);
+        future.cancel(false);
+
+        await(1);
+        Thread.sleep(20);
+        assertEquals(1, target.pushed.size());
+        assertEquals("sent", target.pushed.get(0).getRegistrationId());
+    }
+
+    @Test
+    public void sendsManyMessages() throws Exception {
+        wheel = new TimingWheel(target, 1);
+        int count = 200000;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; ++i) {
+            wheel.schedule(new PushRequest("id" + i, message), now + i % 500);
+        }
+
+        await(count);
+        assertEquals(count, target.count.get());
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void slowSendDoesNotDelayOtherDevices() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingService slow = new RecordingService() {
+            @Override
+            protected void push(PushRequest request) {
+                if ("slow".equals(request.getRegistrationId())) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.push(request);
+            }
+        };
+        wheel = new TimingWheel(slow, 1);
+        long now = System.currentTimeMillis();
+        wheel.schedule(new PushRequest("slow", message), now + 5);
+        wheel.schedule(new PushRequest("fast", message), now + 10);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (slow.count.get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, slow.pushed.size());
+        assertEquals("fast", slow.pushed.get(0).getRegistrationId());
+        release.countDown();
+    }
+
+    @Test
+    public void failsPendingMessagesWhenStopped() throws Exception {
+        wheel = new TimingWheel(target, 10);
+        CompletableFuture<C2DMResult> future = new CompletableFuture<C2DMResult>();
+        wheel.schedule(new PushRequest("later", message, future),
+                System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+        Thread.sleep(20);
+        wheel.stop();
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Expected the message to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, wheel.getPendingCount());
+        assertEquals(0, target.count.get());
+    }
+
+    /**
+     * Stub service that records the messages pushed, and when
+     */
+    static class RecordingService extends AbstractC2DMService {
+        final List<PushRequest> pushed = new CopyOnWriteArrayList<PushRequest>();
+        final List<Long> sentAt = new CopyOnWriteArrayList<Long>();
+        final AtomicInteger count = new AtomicInteger();
+
+        RecordingService() {
+            super("http://localhost/", "token");
+        }
+
+        @Override
+        protected void push(PushRequest request) {
+            // recorded before counted, as tests await the count
+            if (pushed.size() < 10) {
+                pushed.add(request);
+                sentAt.add(System.currentTimeMillis());
+            }
+            count.incrementAndGet();
+            request.complete(C2DMResponse.SUCCESSFUL, "id");
+        }
+    }
+}
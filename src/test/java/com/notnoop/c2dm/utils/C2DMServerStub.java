@@ -0,0 +1,275 @@
+/*
+ * Copyright 2011, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.c2dm.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Google C2DM servers, to be used in tests and
+ * benchmarks.
+ *
+ * By default, every request is answered successfully with a message id.
+ */
+public class C2DMServerStub {
+    static {
+        // avoid Nagle's delays dominating the measured round trips
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        // keep the connections of large client pools alive between requests
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "20000");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile int status = 200;
+    private volatile String body = "id=0:1234%7Babcdef";
+    private volatile long latency = 0;
+    private final Map<String, String> headers = new ConcurrentHashMap<String, String>();
+    private final Queue<Response> scripted = new ConcurrentLinkedQueue<Response>();
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile String lastAuthorization;
+    private volatile String acceptedAuthorization;
+    private volatile String loginToken;
+    private final AtomicInteger logins = new AtomicInteger();
+
+    private C2DMServerStub(ExecutorService executor) throws IOException {
+        this.executor = executor;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16384);
+        this.server.setExecutor(executor);
+        this.server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        this.server.createContext("/accounts/ClientLogin", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                login(exchange);
+            }
+        });
+    }
+
+    /**
+     * Starts a new stub server on an ephemeral port, handling requests with
+     * the provided number of threads.
+     */
+    public static C2DMServerStub start(int threads) throws IOException {
+        C2DMServerStub stub = new C2DMServerStub(Executors.newFixedThreadPool(threads));
+        stub.server.start();
+        return stub;
+    }
+
+    /**
+     * Starts a new stub server on an ephemeral port, handling each request
+     * on its own virtual thread, to sustain many concurrent requests.
+     */
+    public static C2DMServerStub start() throws IOException {
+        C2DMServerStub stub = new C2DMServerStub(Executors.newVirtualThreadPerTaskExecutor());
+        stub.server.start();
+        return stub;
+    }
+
+    public String getServiceUri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/c2dm/send";
+    }
+
+    /**
+     * Returns the address of the stub ClientLogin endpoint
+     */
+    public String getLoginUri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/accounts/ClientLogin";
+    }
+
+    /**
+     * Sets the token issued by subsequent logins, or null to reject them
+     */
+    public void issueAuthToken(String authToken) {
+        this.loginToken = authToken;
+    }
+
+    public int getLoginCount() {
+        return logins.get();
+    }
+
+    /**
+     * Sets the status code and body of subsequent responses
+     */
+    public void respondWith(int status, String body) {
+        this.status = status;
+        this.body = body;
+    }
+
+    /**
+     * Queues a one-off response, sent before falling back to the default
+     * response.  Scripted responses are sent in the order they are queued.
+     *
+     * @param headers   header names and values, alternating
+     */
+    public void respondNext(int status, String body, String... headers) {
+        scripted.add(new Response(status, body, headers));
+    }
+
+    /**
+     * Sets a header to be included in subsequent responses
+     */
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    /**
+     * Rejects subsequent requests not carrying the provided authentication
+     * token with 401 Unauthorized
+     */
+    public void acceptAuthToken(String authToken) {
+        this.acceptedAuthorization = "GoogleLogin auth=" + authToken;
+    }
+
+    /**
+     * Sets the time in millis each request takes, emulating the network
+     * round trip to Google servers.
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the Authorization header of the last request received
+     */
+    public String getLastAuthorization() {
+        return lastAuthorization;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        logins.incrementAndGet();
+
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1);
+        in.close();
+
+        String authToken = this.loginToken;
+        if (authToken == null) {
+            send(exchange, 403, "Error=BadAuthentication\n");
+        } else {
+            send(exchange, 200, "SID=sid\nLSID=lsid\nAuth=" + authToken + "\n");
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        lastAuthorization = authorization;
+
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1);
+        in.close();
+
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+        }
+
+        int status = this.status;
+        String body = this.body;
+        Response next = scripted.poll();
+        if (next != null) {
+            status = next.status;
+            body = next.body;
+            for (int i = 0; i + 1 < next.headers.length; i += 2) {
+                exchange.getResponseHeaders().set(next.headers[i], next.headers[i + 1]);
+            }
+        }
+
+        String accepted = this.acceptedAuthorization;
+        if (accepted != null && !accepted.equals(authorization)) {
+            status = 401;
+            body = "";
+        }
+
+        send(exchange, status, body);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] content = body.getBytes("US-ASCII");
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, content.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content);
+        out.close();
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+        final String[] headers;
+
+        Response(int status, String body, String[] headers) {
+            this.status = status;
+            this.body = body;
+            this.headers = headers;
+        }
+    }
+}